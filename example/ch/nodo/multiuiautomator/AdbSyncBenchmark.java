@@ -0,0 +1,115 @@
+/*******************************************************************************
+ * Copyright (c) 2014, Lorenzo Keller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package ch.nodo.multiuiautomator;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ *
+ * Measures the throughput and the CPU time of the file transfers done by
+ * {@link AdbClient}.
+ *
+ * Usage: AdbSyncBenchmark serial [size in MB] [adb host] [adb port]
+ *
+ * Any server speaking the adb protocol can be used, for example a local fake
+ * sync endpoint to measure the host side cost alone.
+ *
+ */
+public class AdbSyncBenchmark {
+
+	private static final String REMOTE_PATH = "/data/local/tmp/sync-benchmark.bin";
+
+	private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+	public static void main(String[] args) throws Exception {
+
+		if (args.length < 1) {
+			System.out.println("Usage: AdbSyncBenchmark serial [size in MB] [adb host] [adb port]");
+			return;
+		}
+
+		final String serial = args[0];
+		int size = (args.length > 1 ? Integer.parseInt(args[1]) : 32) * 1024 * 1024;
+
+		final AdbClient client = args.length > 3 ? new AdbClient(args[2], Integer.parseInt(args[3])) : new AdbClient();
+
+		byte[] content = new byte[size];
+		new Random(0).nextBytes(content);
+
+		final File local = File.createTempFile("sync-benchmark", ".bin");
+		local.deleteOnExit();
+
+		FileOutputStream out = new FileOutputStream(local);
+		try {
+			out.write(content);
+		} finally {
+			out.close();
+		}
+
+		final ByteBuffer buffer = ByteBuffer.wrap(content);
+
+		measure("push file", size, new Transfer() {
+			@Override
+			public void run() throws Exception {
+				client.push(serial, local.getPath(), REMOTE_PATH);
+			}
+		});
+
+		measure("push buffer", size, new Transfer() {
+			@Override
+			public void run() throws Exception {
+				client.push(serial, buffer, REMOTE_PATH);
+			}
+		});
+
+		measure("pull file", size, new Transfer() {
+			@Override
+			public void run() throws Exception {
+				client.pull(serial, REMOTE_PATH, local.getPath());
+			}
+		});
+
+		measure("pull buffer", size, new Transfer() {
+			@Override
+			public void run() throws Exception {
+				client.pull(serial, REMOTE_PATH);
+			}
+		});
+
+		client.shell(serial, "rm " + REMOTE_PATH);
+	}
+
+	private interface Transfer {
+		void run() throws Exception;
+	}
+
+	private static void measure(String name, int size, Transfer transfer) throws Exception {
+
+		long cpu = THREADS.getCurrentThreadCpuTime();
+		long start = System.nanoTime();
+
+		transfer.run();
+
+		long elapsed = System.nanoTime() - start;
+		cpu = THREADS.getCurrentThreadCpuTime() - cpu;
+
+		System.out.println(String.format("%s: %.1f MB/s, %.1f ms, cpu %.1f ms", name,
+				size / 1024.0 / 1024.0 / (elapsed / 1e9), elapsed / 1e6, cpu / 1e6));
+	}
+}
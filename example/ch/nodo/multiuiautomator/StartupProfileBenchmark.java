@@ -0,0 +1,74 @@
+/*******************************************************************************
+ * Copyright (c) 2014, Lorenzo Keller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package ch.nodo.multiuiautomator;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import ch.nodo.multiuiautomator.SdkTools.EmulatorController;
+
+/**
+ *
+ * Starts an AVD several times with each startup profile and prints how long
+ * it took to be ready.
+ *
+ * Usage: StartupProfileBenchmark avd [runs] [snapshot]
+ *
+ * The SDK is taken from the ANDROID_SDK Java property. Pointing it to a
+ * directory with a fake <code>tools/emulator</code> script allows to check
+ * the commands and the state handling without starting real emulators.
+ *
+ */
+public class StartupProfileBenchmark {
+
+	public static void main(String[] args) {
+
+		if (args.length < 1) {
+			System.out.println("Usage: StartupProfileBenchmark avd [runs] [snapshot]");
+			return;
+		}
+
+		int runs = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+		List<StartupProfile> profiles = new ArrayList<StartupProfile>();
+		profiles.add(StartupProfile.cold());
+		profiles.add(StartupProfile.quickBoot());
+
+		if (args.length > 2) {
+			profiles.add(StartupProfile.snapshot(args[2]));
+		}
+
+		EmulatorController emulator = SdkTools.getDefaultSDK().createEmulatorController(args[0]);
+
+		emulator.create();
+
+		for (StartupProfile profile : profiles) {
+
+			emulator.setStartupProfile(profile);
+
+			for (int i = 0; i < runs; i++) {
+
+				emulator.start();
+
+				try {
+					System.out.println(profile + ": ready after " + emulator.waitForReady() + "ms");
+				} finally {
+					emulator.stop();
+				}
+			}
+		}
+
+		System.out.print(StartupReport.getDefault());
+	}
+}
@@ -0,0 +1,126 @@
+/*******************************************************************************
+ * Copyright (c) 2014, Lorenzo Keller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package ch.nodo.multiuiautomator;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.uiautomatorstub.ObjInfo;
+import com.github.uiautomatorstub.Rect;
+import com.github.uiautomatorstub.Selector;
+
+/**
+ *
+ * Compares the payload size and the (de)serialization time of the available
+ * {@link WireEncoding}s for typical automator messages.
+ *
+ * Add jackson-dataformat-smile to the classpath to include the binary
+ * encoding in the comparison.
+ *
+ */
+public class WireEncodingBenchmark {
+
+	private static final int WARMUP = 2000;
+	private static final int ITERATIONS = 20000;
+
+	public static void main(String[] args) throws Exception {
+
+		ObjInfo[] list = createListItems(40);
+		Selector selector = createSelector();
+
+		for (WireEncoding encoding : WireEncoding.values()) {
+
+			if (!encoding.isAvailable()) {
+				System.out.println(encoding + ": not available");
+				continue;
+			}
+
+			measure(encoding, "ObjInfo[40]", list, ObjInfo[].class);
+			measure(encoding, "Selector", selector, Selector.class);
+		}
+	}
+
+	private static void measure(WireEncoding encoding, String name, Object value, Class<?> type) throws Exception {
+
+		ObjectMapper mapper = encoding.getObjectMapper();
+
+		byte[] data = mapper.writeValueAsBytes(value);
+
+		for (int i = 0; i < WARMUP; i++) {
+			mapper.readValue(mapper.writeValueAsBytes(value), type);
+		}
+
+		long start = System.nanoTime();
+
+		for (int i = 0; i < ITERATIONS; i++) {
+			data = mapper.writeValueAsBytes(value);
+		}
+
+		long serialization = System.nanoTime() - start;
+
+		start = System.nanoTime();
+
+		for (int i = 0; i < ITERATIONS; i++) {
+			mapper.readValue(data, type);
+		}
+
+		long deserialization = System.nanoTime() - start;
+
+		System.out.println(String.format("%s %s: %d bytes, write %.2f us, read %.2f us", encoding, name, data.length,
+				serialization / 1000.0 / ITERATIONS, deserialization / 1000.0 / ITERATIONS));
+	}
+
+	private static ObjInfo[] createListItems(int count) {
+
+		ObjInfo[] items = new ObjInfo[count];
+
+		for (int i = 0; i < count; i++) {
+
+			Rect bounds = new Rect();
+			bounds.setLeft(0);
+			bounds.setTop(96 * i);
+			bounds.setRight(480);
+			bounds.setBottom(96 * (i + 1));
+
+			ObjInfo info = new ObjInfo();
+			info.setBounds(bounds);
+			info.setVisibleBounds(bounds);
+			info.setChildCount(2);
+			info.setClassName("android.widget.LinearLayout");
+			info.setContentDescription("Item " + i);
+			info.setPackageName("com.android.settings");
+			info.setText("Settings entry number " + i);
+			info.setClickable(true);
+			info.setEnabled(true);
+			info.setFocusable(true);
+
+			items[i] = info;
+		}
+
+		return items;
+	}
+
+	private static Selector createSelector() {
+
+		Selector child = new Selector();
+		child.setClassName("android.widget.TextView");
+		child.setText("Settings");
+
+		Selector selector = new Selector();
+		selector.setScrollable(true);
+		selector.setPackageName("com.android.launcher");
+		selector.setChildOrSiblingSelector(new Selector[] { child });
+		selector.setChildOrSibling(new String[] { "child" });
+
+		return selector;
+	}
+}
@@ -0,0 +1,645 @@
+/*******************************************************************************
+ * Copyright (c) 2014, Lorenzo Keller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package ch.nodo.multiuiautomator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ *
+ * Talks directly to the adb server over its socket, without starting an adb
+ * process for each command.
+ *
+ * Each request opens a new connection to the server. Requests to a device
+ * first switch the connection to the device with <code>host:transport</code>
+ * and then run <code>shell:</code> or <code>sync:</code> on it.
+ *
+ * A {@link java.net.ConnectException} means that the adb server is not
+ * running, an {@link AdbException} that the server refused the request.
+ *
+ */
+public class AdbClient {
+
+	public static final int DEFAULT_PORT = 5037;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final int SYNC_DATA_MAX = 64 * 1024;
+
+	private static final int DEFAULT_FILE_MODE = 0100644;
+
+	private static final int DIRECTORY_MODE = 0040000;
+
+	private static final int FILE_TYPE_MASK = 0170000;
+
+	/**
+	 *
+	 * Thrown when the adb server or the device answers with a failure
+	 *
+	 */
+	public static class AdbException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		public AdbException(String message) {
+			super(message);
+		}
+	}
+
+	private final String mHost;
+	private final int mPort;
+
+	private int mConnectTimeout = 2000;
+
+	public AdbClient() {
+		this("127.0.0.1", DEFAULT_PORT);
+	}
+
+	public AdbClient(String host, int port) {
+		mHost = host;
+		mPort = port;
+	}
+
+	public void setConnectTimeout(int connectTimeout) {
+		mConnectTimeout = connectTimeout;
+	}
+
+	/**
+	 *
+	 * Returns the devices known to the adb server with their state (device,
+	 * offline, ...)
+	 *
+	 * @return a map from serial number to state, in the order reported by adb
+	 */
+	public Map<String, String> getDevices() throws IOException {
+
+		Socket socket = connect();
+
+		try {
+
+			sendRequest(socket, "host:devices");
+
+			return readDeviceList(socket.getInputStream());
+
+		} finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 *
+	 * Opens a connection on which the adb server sends the device list once
+	 * and then again every time it changes, each list is read with
+	 * {@link #readDeviceList(InputStream)}.
+	 *
+	 * @return the connection, to be closed by the caller
+	 */
+	Socket trackDevices() throws IOException {
+
+		Socket socket = connect();
+
+		try {
+			sendRequest(socket, "host:track-devices");
+			return socket;
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+	}
+
+	/**
+	 *
+	 * Reads one device list as sent by host:devices and host:track-devices
+	 *
+	 * @return a map from serial number to state, in the order reported by adb
+	 */
+	static Map<String, String> readDeviceList(InputStream in) throws IOException {
+
+		String output = readString(in);
+
+		Map<String, String> devices = new LinkedHashMap<String, String>();
+
+		for (String line : output.split("\n")) {
+
+			String[] parts = line.split("\t");
+
+			if (parts.length == 2) {
+				devices.put(parts[0], parts[1].trim());
+			}
+		}
+
+		return devices;
+	}
+
+	/**
+	 *
+	 * Forwards a port from the host to the device
+	 *
+	 * @param serial serial number of the device
+	 * @param local the port on the host (uses adb forward syntax)
+	 * @param remote the port on the device (uses adb forward syntax)
+	 */
+	public void forward(String serial, String local, String remote) throws IOException {
+		hostRequest("host-serial:" + serial + ":forward:" + local + ";" + remote);
+	}
+
+	/**
+	 *
+	 * Removes a port forwarding
+	 *
+	 * @param serial serial number of the device
+	 * @param local the port on the host (uses adb forward syntax)
+	 */
+	public void removeForward(String serial, String local) throws IOException {
+		hostRequest("host-serial:" + serial + ":killforward:" + local);
+	}
+
+	/**
+	 *
+	 * Runs a shell command on the device and copies its output to the stream
+	 * until the command terminates.
+	 *
+	 * @param serial serial number of the device
+	 * @param command the command line
+	 * @param out where to copy the output, <code>null</code> to discard it
+	 */
+	public void shell(String serial, String command, OutputStream out) throws IOException {
+
+		Socket socket = openService(serial, "shell:" + command);
+
+		try {
+
+			InputStream in = socket.getInputStream();
+
+			byte[] buffer = new byte[8192];
+			int len;
+
+			while ((len = in.read(buffer)) != -1) {
+				if (out != null) {
+					out.write(buffer, 0, len);
+				}
+			}
+
+			if (out != null) {
+				out.flush();
+			}
+
+		} finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 *
+	 * Runs a shell command on the device and returns its output
+	 *
+	 * @param serial serial number of the device
+	 * @param command the command line
+	 */
+	public String shell(String serial, String command) throws IOException {
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		shell(serial, command, out);
+
+		return new String(out.toByteArray(), UTF8);
+	}
+
+	/**
+	 *
+	 * Opens an interactive shell on the device, see {@link ShellSession}
+	 *
+	 * @param serial serial number of the device
+	 * @return the connection, commands are written to it and their output
+	 *         read from it
+	 */
+	Socket openShell(String serial) throws IOException {
+		return openService(serial, "shell:");
+	}
+
+	/**
+	 *
+	 * Copies a file from the host to the device. Like <code>adb push</code>,
+	 * if the destination is a directory the file keeps its name.
+	 *
+	 * The content is sent from the file channel straight to the socket.
+	 *
+	 * @param serial serial number of the device
+	 * @param origin the source path (on the host)
+	 * @param destination the destination path (on the device)
+	 */
+	public void push(String serial, String origin, String destination) throws IOException {
+
+		File file = new File(origin);
+
+		FileChannel source = new FileInputStream(file).getChannel();
+
+		try {
+			send(serial, file.getName(), source, null, (int) (file.lastModified() / 1000), destination);
+		} finally {
+			source.close();
+		}
+	}
+
+	/**
+	 *
+	 * Copies the remaining content of a buffer to a file on the device. The
+	 * position of the buffer is not changed.
+	 *
+	 * @param serial serial number of the device
+	 * @param data the content of the file
+	 * @param destination the destination path (on the device)
+	 */
+	public void push(String serial, ByteBuffer data, String destination) throws IOException {
+		send(serial, null, null, data, (int) (System.currentTimeMillis() / 1000), destination);
+	}
+
+	private void send(String serial, String name, FileChannel file, ByteBuffer buffer, int modified,
+			String destination) throws IOException {
+
+		SocketChannel channel = openService(serial, "sync:").getChannel();
+
+		try {
+
+			if (name != null && (stat(channel, destination) & FILE_TYPE_MASK) == DIRECTORY_MODE) {
+				destination = destination + "/" + name;
+			}
+
+			writePacket(channel, "SEND", (destination + "," + DEFAULT_FILE_MODE).getBytes(UTF8));
+
+			if (file != null) {
+
+				long position = 0;
+				long size = file.size();
+
+				while (position < size) {
+
+					long end = position + Math.min(SYNC_DATA_MAX, size - position);
+
+					writeHeader(channel, "DATA", (int) (end - position));
+
+					while (position < end) {
+						position += file.transferTo(position, end - position, channel);
+					}
+				}
+
+			} else {
+
+				ByteBuffer data = buffer.duplicate();
+
+				while (data.hasRemaining()) {
+
+					ByteBuffer chunk = data.slice();
+					chunk.limit(Math.min(SYNC_DATA_MAX, chunk.remaining()));
+
+					writeHeader(channel, "DATA", chunk.remaining());
+					writeFully(channel, chunk);
+
+					data.position(data.position() + chunk.limit());
+				}
+			}
+
+			writeHeader(channel, "DONE", modified);
+
+			ByteBuffer reply = readHeader(channel);
+			String id = getId(reply);
+
+			if ("FAIL".equals(id)) {
+				throw new AdbException("Push to " + destination + " failed: " + readString(channel, reply.getInt(4)));
+			} else if (!"OKAY".equals(id)) {
+				throw new IOException("Unexpected sync reply " + id);
+			}
+
+			writeHeader(channel, "QUIT", 0);
+
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 *
+	 * Copies a file from the device to the host. Like <code>adb pull</code>,
+	 * if the destination is a directory the file keeps its name.
+	 *
+	 * The content is received from the socket straight into the file channel.
+	 *
+	 * @param serial serial number of the device
+	 * @param origin the source path (on the device)
+	 * @param destination the destination path (on the host)
+	 */
+	public void pull(String serial, String origin, String destination) throws IOException {
+
+		File file = new File(destination);
+
+		if (file.isDirectory()) {
+			file = new File(file, new File(origin).getName());
+		}
+
+		FileChannel target = new FileOutputStream(file).getChannel();
+
+		boolean complete = false;
+
+		try {
+			receive(serial, origin, target);
+			complete = true;
+		} finally {
+			target.close();
+			if (!complete) {
+				file.delete();
+			}
+		}
+	}
+
+	/**
+	 *
+	 * Reads a file from the device into memory
+	 *
+	 * @param serial serial number of the device
+	 * @param origin the source path (on the device)
+	 * @return a buffer with the content of the file between its position and
+	 *         its limit
+	 */
+	public ByteBuffer pull(String serial, String origin) throws IOException {
+		return receive(serial, origin, null);
+	}
+
+	private ByteBuffer receive(String serial, String origin, FileChannel file) throws IOException {
+
+		SocketChannel channel = openService(serial, "sync:").getChannel();
+
+		try {
+
+			writePacket(channel, "RECV", origin.getBytes(UTF8));
+
+			ByteBuffer buffer = file == null ? ByteBuffer.allocate(SYNC_DATA_MAX) : null;
+			long position = 0;
+
+			while (true) {
+
+				ByteBuffer reply = readHeader(channel);
+				String id = getId(reply);
+				int length = reply.getInt(4);
+
+				if ("DATA".equals(id)) {
+
+					if (length < 0 || length > SYNC_DATA_MAX) {
+						throw new IOException("Invalid sync data length " + length);
+					}
+
+					if (file != null) {
+
+						long end = position + length;
+
+						while (position < end) {
+
+							long count = file.transferFrom(channel, position, end - position);
+
+							if (count <= 0) {
+								throw new EOFException();
+							}
+
+							position += count;
+						}
+
+					} else {
+
+						if (buffer.remaining() < length) {
+							ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + length));
+							buffer.flip();
+							larger.put(buffer);
+							buffer = larger;
+						}
+
+						buffer.limit(buffer.position() + length);
+						readFully(channel, buffer);
+						buffer.limit(buffer.capacity());
+					}
+
+				} else if ("DONE".equals(id)) {
+					break;
+				} else if ("FAIL".equals(id)) {
+					throw new AdbException("Pull of " + origin + " failed: " + readString(channel, length));
+				} else {
+					throw new IOException("Unexpected sync reply " + id);
+				}
+			}
+
+			writeHeader(channel, "QUIT", 0);
+
+			if (buffer != null) {
+				buffer.flip();
+			}
+
+			return buffer;
+
+		} finally {
+			channel.close();
+		}
+	}
+
+	private int stat(SocketChannel channel, String path) throws IOException {
+
+		writePacket(channel, "STAT", path.getBytes(UTF8));
+
+		ByteBuffer reply = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+		readFully(channel, reply);
+
+		String id = getId(reply);
+
+		if (!"STAT".equals(id)) {
+			throw new IOException("Unexpected sync reply " + id);
+		}
+
+		// followed by the size and the modification time
+		return reply.getInt(4);
+	}
+
+	private void hostRequest(String request) throws IOException {
+
+		Socket socket = connect();
+
+		try {
+
+			sendRequest(socket, request);
+
+			// newer servers confirm the forward with a second status
+			String status = readStatusOrEnd(socket.getInputStream());
+
+			if ("FAIL".equals(status)) {
+				throw new AdbException(request + " failed: " + readString(socket.getInputStream()));
+			}
+
+		} finally {
+			socket.close();
+		}
+	}
+
+	private Socket openService(String serial, String service) throws IOException {
+
+		Socket socket = connect();
+
+		try {
+			sendRequest(socket, "host:transport:" + serial);
+			sendRequest(socket, service);
+			return socket;
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+	}
+
+	private Socket connect() throws IOException {
+
+		Socket socket = SocketChannel.open().socket();
+
+		try {
+			socket.setTcpNoDelay(true);
+			socket.connect(new InetSocketAddress(mHost, mPort), mConnectTimeout);
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+
+		return socket;
+	}
+
+	private void sendRequest(Socket socket, String request) throws IOException {
+
+		byte[] payload = request.getBytes(UTF8);
+
+		OutputStream out = socket.getOutputStream();
+		out.write(String.format("%04x", payload.length).getBytes(UTF8));
+		out.write(payload);
+		out.flush();
+
+		InputStream in = socket.getInputStream();
+
+		String status = readStatusOrEnd(in);
+
+		if ("FAIL".equals(status)) {
+			throw new AdbException(request + " failed: " + readString(in));
+		} else if (!"OKAY".equals(status)) {
+			throw new IOException("Unexpected reply to " + request + ": " + status);
+		}
+	}
+
+	private static String readStatusOrEnd(InputStream in) throws IOException {
+
+		byte[] status = new byte[4];
+
+		int read = 0;
+
+		while (read < status.length) {
+
+			int len = in.read(status, read, status.length - read);
+
+			if (len == -1) {
+				if (read == 0) return null;
+				throw new EOFException();
+			}
+
+			read += len;
+		}
+
+		return new String(status, UTF8);
+	}
+
+	private static String readString(InputStream in) throws IOException {
+
+		DataInputStream data = new DataInputStream(in);
+
+		byte[] length = new byte[4];
+		data.readFully(length);
+
+		return readString(data, Integer.parseInt(new String(length, UTF8), 16));
+	}
+
+	private static String readString(DataInputStream in, int length) throws IOException {
+
+		byte[] data = new byte[length];
+		in.readFully(data);
+
+		return new String(data, UTF8);
+	}
+
+	private static void writeHeader(SocketChannel channel, String id, int value) throws IOException {
+
+		ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+		header.put(id.getBytes(UTF8)).putInt(value).flip();
+
+		writeFully(channel, header);
+	}
+
+	private static void writePacket(SocketChannel channel, String id, byte[] data) throws IOException {
+
+		ByteBuffer packet = ByteBuffer.allocate(8 + data.length).order(ByteOrder.LITTLE_ENDIAN);
+		packet.put(id.getBytes(UTF8)).putInt(data.length).put(data).flip();
+
+		writeFully(channel, packet);
+	}
+
+	private static ByteBuffer readHeader(SocketChannel channel) throws IOException {
+
+		ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+
+		readFully(channel, header);
+
+		return header;
+	}
+
+	private static String getId(ByteBuffer header) {
+		return new String(header.array(), 0, 4, UTF8);
+	}
+
+	private static String readString(SocketChannel channel, int length) throws IOException {
+
+		ByteBuffer data = ByteBuffer.allocate(length);
+
+		readFully(channel, data);
+
+		return new String(data.array(), UTF8);
+	}
+
+	private static void readFully(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) == -1) {
+				throw new EOFException();
+			}
+		}
+	}
+
+	private static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+}
@@ -0,0 +1,298 @@
+/*******************************************************************************
+ * Copyright (c) 2014, Lorenzo Keller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package ch.nodo.multiuiautomator;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.github.uiautomatorstub.AutomatorService;
+
+/**
+ *
+ * Records calls made on an {@link AutomatorService} and sends them to the
+ * device as a single JSON-RPC 2.0 batch request.
+ *
+ * If the server does not accept batches, either answering with an HTTP
+ * error or with something else than an array, the recorded calls are sent
+ * one after the other instead. If the connection fails, the calls are not
+ * sent again since the server may already have run them: each result
+ * reports the failure.
+ *
+ */
+public class AutomatorBatch {
+
+	/**
+	 *
+	 * The calls to record. The service passed to {@link #run(AutomatorService)}
+	 * does not contact the device, all its methods return <code>null</code>,
+	 * <code>false</code> or zero.
+	 *
+	 */
+	public interface Block {
+		void run(AutomatorService service) throws Exception;
+	}
+
+	/**
+	 *
+	 * The outcome of a single call of the batch.
+	 *
+	 */
+	public static class Result {
+
+		private final String mMethod;
+		private final Object mValue;
+		private final Throwable mError;
+
+		Result(String method, Object value, Throwable error) {
+			mMethod = method;
+			mValue = value;
+			mError = error;
+		}
+
+		public String getMethod() {
+			return mMethod;
+		}
+
+		public boolean isError() {
+			return mError != null;
+		}
+
+		public Throwable getError() {
+			return mError;
+		}
+
+		/**
+		 *
+		 * Returns the value returned by the call or throws the error raised
+		 * by it.
+		 *
+		 */
+		public Object get() throws Throwable {
+			if (mError != null) throw mError;
+			return mValue;
+		}
+
+		@Override
+		public String toString() {
+			return mMethod + (mError != null ? " failed: " + mError : " = " + mValue);
+		}
+	}
+
+	private static class Call {
+		String mMethod;
+		Object[] mArguments;
+		Type mReturnType;
+	}
+
+	private final PooledJsonRpcHttpClient mClient;
+	private final List<Call> mCalls = new ArrayList<Call>();
+
+	AutomatorBatch(PooledJsonRpcHttpClient client) {
+		mClient = client;
+	}
+
+	/**
+	 *
+	 * Returns a service that records every call made on it.
+	 *
+	 */
+	public AutomatorService getService() {
+		return (AutomatorService) Proxy.newProxyInstance(AutomatorService.class.getClassLoader(),
+				new Class<?>[] { AutomatorService.class }, new InvocationHandler() {
+
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+
+						if (method.getDeclaringClass() == Object.class) {
+							return method.invoke(AutomatorBatch.this, args);
+						}
+
+						Call call = new Call();
+						call.mMethod = method.getName();
+						call.mArguments = args != null ? args : new Object[0];
+						call.mReturnType = method.getGenericReturnType();
+
+						mCalls.add(call);
+
+						return defaultValue(method.getReturnType());
+					}
+				});
+	}
+
+	/**
+	 *
+	 * Returns the number of calls recorded so far
+	 *
+	 */
+	public int size() {
+		return mCalls.size();
+	}
+
+	/**
+	 *
+	 * Sends all recorded calls and returns their results in the order in
+	 * which they were recorded.
+	 *
+	 */
+	public List<Result> execute() {
+
+		if (mCalls.isEmpty()) {
+			return Collections.emptyList();
+		}
+
+		try {
+
+			if (mClient.isBatchSupported()) {
+
+				List<Result> results = executeBatch();
+
+				if (results != null) {
+					return results;
+				}
+
+				mClient.setBatchSupported(false);
+			}
+
+			return executeSequentially();
+
+		} finally {
+			mCalls.clear();
+		}
+	}
+
+	private List<Result> executeBatch() {
+
+		ObjectMapper mapper = mClient.getObjectMapper();
+
+		ArrayNode request = mapper.createArrayNode();
+
+		List<String> ids = new ArrayList<String>();
+
+		for (Call call : mCalls) {
+
+			String id = mClient.nextId();
+
+			request.add(mClient.createRequest(call.mMethod, call.mArguments, id));
+
+			ids.add(id);
+		}
+
+		byte[] body;
+
+		try {
+			WireEncoding encoding = mClient.getEncoding();
+			body = mClient.exchange(encoding.encode(request), encoding, null);
+		} catch (PooledJsonRpcHttpClient.HttpStatusException e) {
+			// the server rejected the batch
+			return null;
+		} catch (IOException e) {
+			return failAll(e);
+		}
+
+		JsonNode response;
+
+		try {
+			response = WireEncoding.detect(body).decode(body);
+		} catch (IOException e) {
+			// the server does not understand batches
+			return null;
+		}
+
+		if (response == null || !response.isArray()) {
+			// the server does not understand batches
+			return null;
+		}
+
+		Map<String, JsonNode> responses = new HashMap<String, JsonNode>();
+
+		for (JsonNode node : response) {
+			if (node.has("id")) {
+				responses.put(node.get("id").asText(), node);
+			}
+		}
+
+		List<Result> results = new ArrayList<Result>();
+
+		for (int i = 0; i < mCalls.size(); i++) {
+
+			Call call = mCalls.get(i);
+			JsonNode node = responses.get(ids.get(i));
+
+			if (node == null) {
+				results.add(new Result(call.mMethod, null,
+						new IOException("No response for call " + call.mMethod + " in batch")));
+			} else {
+				try {
+					results.add(new Result(call.mMethod, mClient.readResult(node, call.mReturnType), null));
+				} catch (Throwable t) {
+					results.add(new Result(call.mMethod, null, t));
+				}
+			}
+		}
+
+		return results;
+	}
+
+	private List<Result> failAll(IOException error) {
+
+		List<Result> results = new ArrayList<Result>();
+
+		for (Call call : mCalls) {
+			results.add(new Result(call.mMethod, null, error));
+		}
+
+		return results;
+	}
+
+	private List<Result> executeSequentially() {
+
+		List<Result> results = new ArrayList<Result>();
+
+		for (Call call : mCalls) {
+			try {
+				Object value = mClient.invoke(call.mMethod, call.mArguments, call.mReturnType, null);
+				results.add(new Result(call.mMethod, value, null));
+			} catch (Throwable t) {
+				results.add(new Result(call.mMethod, null, t));
+			}
+		}
+
+		return results;
+	}
+
+	private static Object defaultValue(Class<?> type) {
+
+		if (!type.isPrimitive() || type == void.class) return null;
+
+		if (type == boolean.class) return false;
+		if (type == char.class) return (char) 0;
+		if (type == byte.class) return (byte) 0;
+		if (type == short.class) return (short) 0;
+		if (type == int.class) return 0;
+		if (type == long.class) return 0L;
+		if (type == float.class) return 0f;
+
+		return 0d;
+	}
+}
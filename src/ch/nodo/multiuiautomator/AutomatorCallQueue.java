@@ -0,0 +1,197 @@
+/*******************************************************************************
+ * Copyright (c) 2014, Lorenzo Keller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package ch.nodo.multiuiautomator;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import com.github.uiautomatorstub.AsyncAutomatorService;
+import com.github.uiautomatorstub.AutomatorService;
+
+/**
+ *
+ * Runs calls to the automator server of one device in the background.
+ *
+ * Calls that only read the state of the device are sent concurrently, calls
+ * that change it (clicks, key presses, ...) wait until every call submitted
+ * before them completed and block every call submitted after them, so
+ * the order of the actions on the device is the order of submission.
+ *
+ */
+public class AutomatorCallQueue {
+
+	private static final Set<String> READ_ONLY_METHODS = new HashSet<String>(Arrays.asList(
+			"ping", "deviceInfo", "getLastTraversedText", "hasWatcherTriggered",
+			"hasAnyWatcherTriggered", "getWatchers", "isScreenOn", "getText", "exist",
+			"objInfo", "count", "objInfoOfAllInstances", "getUiObject", "getChild",
+			"getFromParent", "getUiObjects", "getConfigurator"));
+
+	private final ExecutorService mExecutor;
+
+	private Future<?> mLastMutation;
+	private List<Future<?>> mReadsSinceMutation = new ArrayList<Future<?>>();
+
+	/**
+	 * @param name used to name the worker threads
+	 * @param concurrency maximum number of calls in flight at the same time
+	 */
+	public AutomatorCallQueue(final String name, int concurrency) {
+		mExecutor = Executors.newFixedThreadPool(concurrency, new ThreadFactory() {
+
+			private int mCount;
+
+			@Override
+			public synchronized Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "automator-" + name + "-" + (mCount++));
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 *
+	 * Returns true if the named {@link AutomatorService} method does not change
+	 * the state of the device.
+	 *
+	 */
+	public static boolean isReadOnly(String method) {
+		return READ_ONLY_METHODS.contains(method);
+	}
+
+	/**
+	 *
+	 * Schedules a call.
+	 *
+	 * @param readOnly true if the call does not change the state of the device
+	 * @param call the call to perform
+	 * @return the result of the call
+	 */
+	public synchronized <T> Future<T> submit(boolean readOnly, final Callable<T> call) {
+
+		final Future<?> lastMutation = mLastMutation;
+
+		if (readOnly) {
+
+			Future<T> future = mExecutor.submit(new Callable<T>() {
+				@Override
+				public T call() throws Exception {
+					await(lastMutation);
+					return call.call();
+				}
+			});
+
+			for (Iterator<Future<?>> it = mReadsSinceMutation.iterator(); it.hasNext();) {
+				if (it.next().isDone()) it.remove();
+			}
+
+			mReadsSinceMutation.add(future);
+
+			return future;
+		}
+
+		final List<Future<?>> reads = mReadsSinceMutation;
+
+		Future<T> future = mExecutor.submit(new Callable<T>() {
+			@Override
+			public T call() throws Exception {
+				await(lastMutation);
+				for (Future<?> read : reads) {
+					await(read);
+				}
+				return call.call();
+			}
+		});
+
+		mLastMutation = future;
+		mReadsSinceMutation = new ArrayList<Future<?>>();
+
+		return future;
+	}
+
+	/**
+	 *
+	 * Creates an {@link AsyncAutomatorService} whose calls are sent by this
+	 * queue to the given service.
+	 *
+	 */
+	public AsyncAutomatorService createAsyncService(final AutomatorService service) {
+		return (AsyncAutomatorService) Proxy.newProxyInstance(AsyncAutomatorService.class.getClassLoader(),
+				new Class<?>[] { AsyncAutomatorService.class }, new InvocationHandler() {
+
+					@Override
+					public Object invoke(Object proxy, Method method, final Object[] args) throws Throwable {
+
+						if (method.getDeclaringClass() == Object.class) {
+							return method.invoke(AutomatorCallQueue.this, args);
+						}
+
+						final Method target = AutomatorService.class.getMethod(method.getName(),
+								method.getParameterTypes());
+
+						return submit(isReadOnly(method.getName()), new Callable<Object>() {
+							@Override
+							public Object call() throws Exception {
+								try {
+									return target.invoke(service, args);
+								} catch (InvocationTargetException e) {
+									Throwable cause = e.getCause();
+									if (cause instanceof Exception) throw (Exception) cause;
+									throw e;
+								}
+							}
+						});
+					}
+				});
+	}
+
+	/**
+	 *
+	 * Stops the worker threads, calls not yet started are cancelled.
+	 *
+	 */
+	public void shutdown() {
+
+		for (Runnable dropped : mExecutor.shutdownNow()) {
+			// so that the threads waiting for their result are released
+			if (dropped instanceof Future) {
+				((Future<?>) dropped).cancel(false);
+			}
+		}
+	}
+
+	private static void await(Future<?> future) throws InterruptedException {
+
+		if (future == null) return;
+
+		try {
+			future.get();
+		} catch (ExecutionException e) {
+			// the failure is reported to whoever submitted that call
+		}
+	}
+}
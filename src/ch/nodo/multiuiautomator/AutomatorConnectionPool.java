@@ -0,0 +1,342 @@
+/*******************************************************************************
+ * Copyright (c) 2014, Lorenzo Keller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package ch.nodo.multiuiautomator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *
+ * Keeps a small number of warm TCP connections to the automator server of a
+ * single device.
+ *
+ * Connections are handed out with {@link #acquire()} and given back with
+ * {@link #release(Connection)} once the response has been completely read.
+ * Connections that failed must be given back with {@link #discard(Connection)}.
+ *
+ */
+public class AutomatorConnectionPool {
+
+	private final String mHost;
+	private final int mPort;
+	private final int mMaxIdle;
+	private final long mIdleTimeout;
+
+	private int mConnectTimeout = 5000;
+	private int mReadTimeout = 0;
+
+	private final Deque<Connection> mIdle = new ArrayDeque<Connection>();
+	private boolean mClosed;
+
+	private final AtomicLong mHits = new AtomicLong();
+	private final AtomicLong mConnects = new AtomicLong();
+	private final AtomicLong mReconnects = new AtomicLong();
+	private final AtomicLong mIdleEvictions = new AtomicLong();
+
+	/**
+	 * Creates a pool for the given endpoint
+	 *
+	 * @param host the host where the automator server can be reached
+	 * @param port the port where the automator server can be reached
+	 * @param maxIdle the maximum number of idle connections kept open
+	 * @param idleTimeout connections idle for longer than this (in milliseconds) are closed
+	 */
+	public AutomatorConnectionPool(String host, int port, int maxIdle, long idleTimeout) {
+		mHost = host;
+		mPort = port;
+		mMaxIdle = maxIdle;
+		mIdleTimeout = idleTimeout;
+	}
+
+	public String getHost() {
+		return mHost;
+	}
+
+	public int getPort() {
+		return mPort;
+	}
+
+	public void setConnectTimeout(int timeout) {
+		mConnectTimeout = timeout;
+	}
+
+	public void setReadTimeout(int timeout) {
+		mReadTimeout = timeout;
+	}
+
+	/**
+	 *
+	 * Returns an idle connection that the server did not close if one is
+	 * available, otherwise opens a new one.
+	 *
+	 * @return a connection that is used exclusively by the caller
+	 * @throws IOException
+	 */
+	public Connection acquire() throws IOException {
+
+		long now = System.currentTimeMillis();
+
+		while (true) {
+
+			Connection connection;
+
+			synchronized (mIdle) {
+
+				if (mClosed) {
+					throw new IOException("Connection pool has been closed");
+				}
+
+				connection = mIdle.pollFirst();
+			}
+
+			if (connection == null) break;
+
+			if (now - connection.mLastUsed > mIdleTimeout) {
+				mIdleEvictions.incrementAndGet();
+				connection.close();
+				continue;
+			}
+
+			// the server closes idle connections on its own, writing to them
+			// succeeds and only the response would fail
+			if (!connection.isAlive()) {
+				mReconnects.incrementAndGet();
+				connection.close();
+				continue;
+			}
+
+			mHits.incrementAndGet();
+			connection.mReused = true;
+			return connection;
+		}
+
+		return connect();
+	}
+
+	/**
+	 *
+	 * Opens a new connection replacing one that turned out to be stale.
+	 *
+	 * @param stale the connection that failed, it will be closed
+	 * @return a fresh connection
+	 * @throws IOException
+	 */
+	public Connection reconnect(Connection stale) throws IOException {
+		stale.close();
+		mReconnects.incrementAndGet();
+		return connect();
+	}
+
+	/**
+	 *
+	 * Gives back a connection that can be used for another request.
+	 *
+	 * @param connection
+	 */
+	public void release(Connection connection) {
+
+		connection.mLastUsed = System.currentTimeMillis();
+
+		synchronized (mIdle) {
+			if (!mClosed && mIdle.size() < mMaxIdle) {
+				mIdle.addFirst(connection);
+				return;
+			}
+		}
+
+		connection.close();
+	}
+
+	/**
+	 *
+	 * Closes a connection that must not be used anymore.
+	 *
+	 * @param connection
+	 */
+	public void discard(Connection connection) {
+		connection.close();
+	}
+
+	/**
+	 *
+	 * Closes all idle connections. Connections currently in use are closed
+	 * when they are given back.
+	 *
+	 */
+	public void close() {
+		synchronized (mIdle) {
+			mClosed = true;
+
+			for (Connection connection : mIdle) {
+				connection.close();
+			}
+
+			mIdle.clear();
+		}
+	}
+
+	/**
+	 *
+	 * Returns the number of requests that were served by an already open
+	 * connection.
+	 *
+	 */
+	public long getHits() {
+		return mHits.get();
+	}
+
+	/**
+	 *
+	 * Returns the number of connections that were opened.
+	 *
+	 */
+	public long getConnects() {
+		return mConnects.get();
+	}
+
+	/**
+	 *
+	 * Returns the number of times a pooled connection turned out to be closed
+	 * by the server, when checked before its reuse or while the request was
+	 * written, and had to be replaced.
+	 *
+	 */
+	public long getReconnects() {
+		return mReconnects.get();
+	}
+
+	/**
+	 *
+	 * Returns the number of connections closed because they were idle for too
+	 * long.
+	 *
+	 */
+	public long getIdleEvictions() {
+		return mIdleEvictions.get();
+	}
+
+	public int getIdleCount() {
+		synchronized (mIdle) {
+			return mIdle.size();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "hits=" + getHits() + " connects=" + getConnects() + " reconnects=" + getReconnects()
+				+ " idleEvictions=" + getIdleEvictions() + " idle=" + getIdleCount();
+	}
+
+	private Connection connect() throws IOException {
+
+		Socket socket = new Socket();
+
+		try {
+			socket.setTcpNoDelay(true);
+			socket.setKeepAlive(true);
+			socket.setSoTimeout(mReadTimeout);
+			socket.connect(new InetSocketAddress(mHost, mPort), mConnectTimeout);
+		} catch (IOException e) {
+			try { socket.close(); } catch (IOException ex) {}
+			throw e;
+		}
+
+		mConnects.incrementAndGet();
+
+		return new Connection(socket);
+	}
+
+	/**
+	 *
+	 * A connection owned by the pool.
+	 *
+	 */
+	public static class Connection {
+
+		private final Socket mSocket;
+		private final InputStream mIn;
+		private final OutputStream mOut;
+		private long mLastUsed;
+		private boolean mReused;
+
+		private Connection(Socket socket) throws IOException {
+			mSocket = socket;
+			mIn = new BufferedInputStream(socket.getInputStream());
+			mOut = new BufferedOutputStream(socket.getOutputStream());
+		}
+
+		public InputStream getInputStream() {
+			return mIn;
+		}
+
+		public OutputStream getOutputStream() {
+			return mOut;
+		}
+
+		/**
+		 *
+		 * Returns true if this connection already served a previous request,
+		 * in which case the server might have closed it in the meantime.
+		 *
+		 */
+		public boolean isReused() {
+			return mReused;
+		}
+
+		/**
+		 *
+		 * Checks that the server did not close this idle connection: nothing
+		 * must be readable, neither data nor the end of the stream.
+		 *
+		 */
+		private boolean isAlive() {
+
+			if (mSocket.isClosed() || mSocket.isInputShutdown()) return false;
+
+			try {
+
+				int timeout = mSocket.getSoTimeout();
+
+				mSocket.setSoTimeout(1);
+
+				try {
+					// an idle connection has nothing to read, a byte or the end
+					// of the stream both mean it cannot be used
+					mIn.read();
+					return false;
+				} catch (SocketTimeoutException e) {
+					return true;
+				} finally {
+					mSocket.setSoTimeout(timeout);
+				}
+
+			} catch (IOException e) {
+				return false;
+			}
+		}
+
+		private void close() {
+			try { mSocket.close(); } catch (IOException e) {}
+		}
+	}
+
+}
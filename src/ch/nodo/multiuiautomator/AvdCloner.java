@@ -0,0 +1,327 @@
+/*******************************************************************************
+ * Copyright (c) 2014, Lorenzo Keller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package ch.nodo.multiuiautomator;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import ch.nodo.multiuiautomator.AvdRegistry.Avd;
+
+/**
+ *
+ * Creates AVDs by copying a prepared "golden" AVD instead of running
+ * <code>android create avd</code>.
+ *
+ * The images that the emulator only reads are hard linked, so all the
+ * clones share them on disk. The images it writes are copied, with
+ * copy-on-write (<code>cp --reflink=auto</code>) where the file system
+ * supports it. Only the names and paths in the <code>.ini</code> files are
+ * rewritten.
+ *
+ */
+public class AvdCloner {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final String INI = ".ini";
+
+	private static final String CONFIG = "config.ini";
+
+	private static final long REFLINK_MIN_SIZE = 1024 * 1024;
+
+	/**
+	 * Files of the golden AVD that are never copied: locks and files the
+	 * emulator writes at each start
+	 */
+	private static final Set<String> SKIPPED = new HashSet<String>(Arrays.asList("hardware-qemu.ini",
+			"emulator-user.ini", "multiinstance.lock", "emu-launch-params.txt"));
+
+	private final AvdRegistry mRegistry;
+
+	private Set<String> mReadOnlyFiles = new HashSet<String>(Arrays.asList("userdata.img", "system.img",
+			"ramdisk.img", "kernel-qemu"));
+
+	private boolean mReflinkEnabled = System.getProperty("os.name").toLowerCase().contains("linux");
+
+	private long mLinkedBytes;
+	private long mCopiedBytes;
+
+	public AvdCloner(AvdRegistry registry) {
+		mRegistry = registry;
+	}
+
+	/**
+	 *
+	 * Sets the names of the files that the emulator does not modify and that
+	 * are shared between the clones. By default the initial user data and
+	 * the system images.
+	 *
+	 */
+	public synchronized void setReadOnlyFiles(Set<String> names) {
+		mReadOnlyFiles = new HashSet<String>(names);
+	}
+
+	/**
+	 *
+	 * Enables or disables copying the large files with
+	 * <code>cp --reflink=auto</code>, enabled by default on Linux
+	 *
+	 */
+	public synchronized void setReflinkEnabled(boolean enabled) {
+		mReflinkEnabled = enabled;
+	}
+
+	/**
+	 *
+	 * Creates an AVD from a golden one. The new AVD appears in the registry
+	 * only once it is complete.
+	 *
+	 * @param golden name of the AVD to copy, it must not be running
+	 * @param name name of the new AVD
+	 * @return the new AVD
+	 */
+	public Avd clone(String golden, String name) {
+
+		Avd source = mRegistry.get(golden);
+
+		if (source == null || source.getPath() == null) {
+			throw new RuntimeException("Unknown AVD " + golden);
+		}
+
+		if (mRegistry.contains(name)) {
+			throw new RuntimeException("AVD " + name + " already exists");
+		}
+
+		File directory = mRegistry.getDirectory();
+		File destination = new File(directory, name + ".avd");
+		File temporary = new File(directory, name + ".avd.tmp");
+		File ini = new File(directory, name + INI);
+		File iniTemporary = new File(directory, name + INI + ".tmp");
+
+		// left by an AVD that was not completely deleted, it is not ours to remove
+		for (File existing : new File[] { destination, ini }) {
+			if (existing.exists()) {
+				throw new RuntimeException("Cannot clone " + golden + " to " + name + ": " + existing + " already exists");
+			}
+		}
+
+		boolean created = false;
+
+		try {
+
+			delete(temporary);
+
+			copyDirectory(source.getPath(), temporary);
+
+			rewrite(new File(temporary, CONFIG), golden, name, source.getPath(), destination);
+
+			if (!temporary.renameTo(destination)) {
+				throw new IOException("Cannot rename " + temporary + " to " + destination);
+			}
+
+			created = true;
+
+			// the .ini file makes the AVD visible, it is written last
+			Files.deleteIfExists(iniTemporary.toPath());
+			Files.copy(new File(directory, golden + INI).toPath(), iniTemporary.toPath());
+			rewrite(iniTemporary, golden, name, source.getPath(), destination);
+
+			if (!iniTemporary.renameTo(ini)) {
+				throw new IOException("Cannot rename " + iniTemporary + " to " + ini);
+			}
+
+		} catch (IOException e) {
+
+			delete(temporary);
+			delete(iniTemporary);
+
+			if (created && !ini.exists()) {
+				delete(destination);
+			}
+
+			throw new RuntimeException("Error while cloning " + golden + " to " + name, e);
+		}
+
+		mRegistry.update(name);
+
+		return mRegistry.get(name);
+	}
+
+	/**
+	 *
+	 * Returns the total size of the files shared with the golden AVDs
+	 *
+	 */
+	public synchronized long getLinkedBytes() {
+		return mLinkedBytes;
+	}
+
+	/**
+	 *
+	 * Returns the total size of the files copied from the golden AVDs
+	 *
+	 */
+	public synchronized long getCopiedBytes() {
+		return mCopiedBytes;
+	}
+
+	private void copyDirectory(File source, File destination) throws IOException {
+
+		if (!destination.mkdirs()) {
+			throw new IOException("Cannot create " + destination);
+		}
+
+		File[] files = source.listFiles();
+
+		if (files == null) {
+			throw new IOException("Cannot list " + source);
+		}
+
+		for (File file : files) {
+
+			String fileName = file.getName();
+
+			if (SKIPPED.contains(fileName) || fileName.endsWith(".lock")) continue;
+
+			File target = new File(destination, fileName);
+
+			if (file.isDirectory()) {
+				copyDirectory(file, target);
+			} else if (isReadOnly(fileName) && !fileName.endsWith(INI)) {
+				link(file, target);
+			} else {
+				copy(file, target);
+			}
+		}
+	}
+
+	private synchronized boolean isReadOnly(String fileName) {
+		return mReadOnlyFiles.contains(fileName);
+	}
+
+	private void link(File source, File target) throws IOException {
+
+		try {
+			Files.createLink(target.toPath(), source.toPath());
+		} catch (IOException e) {
+			// different file systems or no hard links, copy instead
+			copy(source, target);
+			return;
+		} catch (UnsupportedOperationException e) {
+			copy(source, target);
+			return;
+		}
+
+		synchronized (this) {
+			mLinkedBytes += source.length();
+		}
+	}
+
+	private void copy(File source, File target) throws IOException {
+
+		boolean reflink;
+
+		synchronized (this) {
+			reflink = mReflinkEnabled && source.length() >= REFLINK_MIN_SIZE;
+		}
+
+		if (!reflink || !ProcessRunner.run("cp", "--reflink=auto", source.getPath(), target.getPath()).isSuccess()) {
+			Files.deleteIfExists(target.toPath());
+			Files.copy(source.toPath(), target.toPath());
+		}
+
+		synchronized (this) {
+			mCopiedBytes += source.length();
+		}
+	}
+
+	/**
+	 * Replaces the name and the path of the golden AVD in an .ini file
+	 */
+	private static void rewrite(File file, String golden, String name, File goldenPath, File path) throws IOException {
+
+		if (!file.isFile()) return;
+
+		List<String> lines = new ArrayList<String>();
+
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+
+		try {
+
+			String line;
+
+			while ((line = reader.readLine()) != null) {
+
+				int index = line.indexOf('=');
+
+				if (index > 0) {
+
+					String key = line.substring(0, index).trim();
+					String value = line.substring(index + 1).trim();
+
+					if (key.equals("AvdId") || key.equals("avd.ini.displayname")) {
+						value = name;
+					} else if (key.equals("path.rel")) {
+						value = value.replace(golden + ".avd", name + ".avd");
+					} else {
+						value = value.replace(goldenPath.getPath(), path.getPath());
+					}
+
+					line = key + "=" + value;
+				}
+
+				lines.add(line);
+			}
+
+		} finally {
+			reader.close();
+		}
+
+		Writer writer = new OutputStreamWriter(new FileOutputStream(file), UTF8);
+
+		try {
+			for (String line : lines) {
+				writer.write(line);
+				writer.write('\n');
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+	private static void delete(File file) {
+
+		File[] children = file.listFiles();
+
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+
+		file.delete();
+	}
+}
@@ -0,0 +1,378 @@
+/*******************************************************************************
+ * Copyright (c) 2014, Lorenzo Keller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package ch.nodo.multiuiautomator;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ *
+ * Lists the AVDs by reading their <code>.ini</code> files, instead of
+ * running <code>android list avd</code>.
+ *
+ * The list is read once and kept up to date by watching the AVD directory.
+ * While the directory cannot be watched (for example because it does not
+ * exist yet), the files are read at each call.
+ *
+ */
+public class AvdRegistry {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final String INI = ".ini";
+
+	/**
+	 * An AVD as described by its <code>.ini</code> file
+	 */
+	public static class Avd {
+
+		private final String mName;
+		private final File mPath;
+		private final String mTarget;
+
+		Avd(String name, File path, String target) {
+			mName = name;
+			mPath = path;
+			mTarget = target;
+		}
+
+		public String getName() {
+			return mName;
+		}
+
+		/**
+		 *
+		 * Returns the directory with the content of the AVD
+		 *
+		 */
+		public File getPath() {
+			return mPath;
+		}
+
+		/**
+		 *
+		 * Returns the target of the AVD, for example android-19
+		 *
+		 */
+		public String getTarget() {
+			return mTarget;
+		}
+
+		@Override
+		public String toString() {
+			return mName + " (" + mTarget + ")";
+		}
+	}
+
+	private final File mDirectory;
+
+	private Map<String, Avd> mAvds;
+	private WatchService mWatcher;
+	private int mLoads;
+
+	/**
+	 *
+	 * Returns the directory used by the SDK tools: ANDROID_AVD_HOME if set,
+	 * otherwise .android/avd in ANDROID_SDK_HOME or in the home directory.
+	 *
+	 */
+	public static File getDefaultDirectory() {
+
+		String avdHome = System.getenv("ANDROID_AVD_HOME");
+
+		if (avdHome != null) {
+			return new File(avdHome);
+		}
+
+		String sdkHome = System.getenv("ANDROID_SDK_HOME");
+
+		return new File(new File(sdkHome != null ? sdkHome : System.getProperty("user.home"), ".android"), "avd");
+	}
+
+	/**
+	 * @param directory the directory containing the .ini files of the AVDs
+	 */
+	public AvdRegistry(File directory) {
+		mDirectory = directory;
+	}
+
+	public File getDirectory() {
+		return mDirectory;
+	}
+
+	/**
+	 *
+	 * Returns an AVD, <code>null</code> if it does not exist
+	 *
+	 */
+	public synchronized Avd get(String name) {
+		return getAvdMap().get(name);
+	}
+
+	public boolean contains(String name) {
+		return get(name) != null;
+	}
+
+	/**
+	 *
+	 * Returns all the AVDs, sorted by name
+	 *
+	 */
+	public synchronized List<Avd> getAvds() {
+		return new ArrayList<Avd>(getAvdMap().values());
+	}
+
+	/**
+	 *
+	 * Reads the .ini file of an AVD again, to be called when it was just
+	 * created or deleted so that the change is seen before the watcher
+	 * reports it.
+	 *
+	 */
+	public synchronized void update(String name) {
+
+		if (mAvds == null) return;
+
+		Avd avd = read(new File(mDirectory, name + INI));
+
+		if (avd == null) {
+			mAvds.remove(name);
+		} else {
+			mAvds.put(name, avd);
+		}
+	}
+
+	/**
+	 *
+	 * Forgets the list, it is read again at the next call
+	 *
+	 */
+	public synchronized void refresh() {
+		mAvds = null;
+	}
+
+	/**
+	 *
+	 * Returns how many times the whole directory was read
+	 *
+	 */
+	public synchronized int getLoads() {
+		return mLoads;
+	}
+
+	/**
+	 *
+	 * Stops watching the directory
+	 *
+	 */
+	public synchronized void close() {
+		stopWatching();
+		mAvds = null;
+	}
+
+	private Map<String, Avd> getAvdMap() {
+
+		if (mAvds != null) {
+			return mAvds;
+		}
+
+		// start watching before reading so that no change is missed
+		boolean watching = startWatching();
+
+		Map<String, Avd> avds = load();
+
+		if (watching) {
+			mAvds = avds;
+		}
+
+		return avds;
+	}
+
+	private Map<String, Avd> load() {
+
+		mLoads++;
+
+		Map<String, Avd> avds = new TreeMap<String, Avd>();
+
+		File[] files = mDirectory.listFiles();
+
+		if (files == null) {
+			return avds;
+		}
+
+		for (File file : files) {
+
+			if (!file.getName().endsWith(INI)) continue;
+
+			Avd avd = read(file);
+
+			if (avd != null) {
+				avds.put(avd.getName(), avd);
+			}
+		}
+
+		return avds;
+	}
+
+	private static Avd read(File file) {
+
+		if (!file.isFile()) {
+			return null;
+		}
+
+		Map<String, String> values = new LinkedHashMap<String, String>();
+
+		try {
+
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+
+			try {
+
+				String line;
+
+				while ((line = reader.readLine()) != null) {
+
+					int index = line.indexOf('=');
+
+					if (index > 0) {
+						values.put(line.substring(0, index).trim(), line.substring(index + 1).trim());
+					}
+				}
+
+			} finally {
+				reader.close();
+			}
+
+		} catch (IOException e) {
+			// removed or being written, the watcher reports the next change
+			return null;
+		}
+
+		String name = file.getName().substring(0, file.getName().length() - INI.length());
+		String path = values.get("path");
+
+		return new Avd(name, path == null ? null : new File(path), values.get("target"));
+	}
+
+	private boolean startWatching() {
+
+		if (mWatcher != null) {
+			return true;
+		}
+
+		if (!mDirectory.isDirectory()) {
+			return false;
+		}
+
+		try {
+
+			final WatchService watcher = FileSystems.getDefault().newWatchService();
+
+			mDirectory.toPath().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+
+			mWatcher = watcher;
+
+			Thread thread = new Thread("avd-registry-watcher") {
+				@Override
+				public void run() {
+					watch(watcher);
+				}
+			};
+
+			thread.setDaemon(true);
+			thread.start();
+
+			return true;
+
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	private void stopWatching() {
+
+		if (mWatcher == null) return;
+
+		try {
+			mWatcher.close();
+		} catch (IOException e) {
+			// nothing to do
+		}
+
+		mWatcher = null;
+	}
+
+	private void watch(WatchService watcher) {
+
+		try {
+
+			while (true) {
+
+				WatchKey key = watcher.take();
+
+				synchronized (this) {
+
+					if (mWatcher != watcher) return;
+
+					for (WatchEvent<?> event : key.pollEvents()) {
+
+						if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+							mAvds = null;
+							continue;
+						}
+
+						String file = ((Path) event.context()).getFileName().toString();
+
+						if (file.endsWith(INI)) {
+							update(file.substring(0, file.length() - INI.length()));
+						}
+					}
+
+					if (!key.reset()) {
+						// the directory was removed
+						stopWatching();
+						mAvds = null;
+						return;
+					}
+				}
+			}
+
+		} catch (InterruptedException e) {
+			// stop watching
+		} catch (ClosedWatchServiceException e) {
+			// closed by stopWatching
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		return mDirectory + (mWatcher != null ? " (watched)" : "") + (mAvds != null ? " " + mAvds.values() : "");
+	}
+}
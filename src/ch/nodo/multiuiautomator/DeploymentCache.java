@@ -0,0 +1,246 @@
+/*******************************************************************************
+ * Copyright (c) 2014, Lorenzo Keller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package ch.nodo.multiuiautomator;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import ch.nodo.multiuiautomator.SdkTools.EmulatorController;
+
+/**
+ *
+ * Copies files and applications to a device only when their content changed
+ * since the last time they were deployed.
+ *
+ * The MD5 hash of the host file is compared with the hash of the file on the
+ * device, computed with <code>md5sum</code> when the device has it, or read
+ * from a <code>.md5</code> file stored next to it on the last deployment.
+ * The hashes known to be on the device are remembered, so deploying the same
+ * file again does not contact the device at all.
+ *
+ */
+public class DeploymentCache {
+
+	private static final Pattern HASH = Pattern.compile("\\b([0-9a-f]{32})\\b");
+
+	private static final Map<String, HostHash> sHostHashes = new HashMap<String, HostHash>();
+
+	private static class HostHash {
+		private long mLength;
+		private long mModified;
+		private String mHash;
+	}
+
+	private final EmulatorController mController;
+
+	private final Map<String, String> mDeployed = new HashMap<String, String>();
+
+	private int mHits;
+	private int mTransfers;
+
+	public DeploymentCache(EmulatorController controller) {
+		mController = controller;
+	}
+
+	/**
+	 *
+	 * Copies a file to the device unless the same content is already there
+	 *
+	 * @param origin the source path (on the host)
+	 * @param destination the full destination path (on the device)
+	 * @return true if the file was copied
+	 */
+	public synchronized boolean push(String origin, String destination) {
+
+		String hash = hash(new File(origin));
+
+		if (hash.equals(mDeployed.get(destination))) {
+			mHits++;
+			return false;
+		}
+
+		String output = mController.executeCommandForOutput(
+				"md5sum " + destination + " 2>/dev/null || cat " + destination + ".md5 2>/dev/null");
+
+		if (hash.equals(findHash(output))) {
+			mDeployed.put(destination, hash);
+			mHits++;
+			return false;
+		}
+
+		mDeployed.remove(destination);
+
+		mController.pushFile(origin, destination);
+		mController.executeCommandForOutput("echo " + hash + " > " + destination + ".md5");
+
+		mDeployed.put(destination, hash);
+		mTransfers++;
+
+		return true;
+	}
+
+	/**
+	 *
+	 * Installs an application unless the same APK is already installed
+	 *
+	 * @param apk the path of the APK (on the host)
+	 * @param packageName the package of the application
+	 * @return true if the application was installed
+	 */
+	public synchronized boolean install(String apk, String packageName) {
+
+		String hash = hash(new File(apk));
+		String key = "package:" + packageName;
+		String manifest = "/data/local/tmp/" + packageName + ".apk.md5";
+
+		if (hash.equals(mDeployed.get(key))) {
+			mHits++;
+			return false;
+		}
+
+		String output = mController.executeCommandForOutput(
+				"pm path " + packageName + " && cat " + manifest + " 2>/dev/null");
+
+		if (output.contains("package:") && hash.equals(findHash(output))) {
+			mDeployed.put(key, hash);
+			mHits++;
+			return false;
+		}
+
+		mDeployed.remove(key);
+
+		if (output.contains("package:")) {
+			mController.uninstallApplication(packageName);
+		}
+
+		mController.installApplication(apk);
+		mController.executeCommandForOutput("echo " + hash + " > " + manifest);
+
+		mDeployed.put(key, hash);
+		mTransfers++;
+
+		return true;
+	}
+
+	/**
+	 *
+	 * Forgets what is known to be on the device, the next deployments check
+	 * the device again. To be called when the device content might have
+	 * changed, for example after a restart.
+	 *
+	 */
+	public synchronized void clear() {
+		mDeployed.clear();
+	}
+
+	/**
+	 *
+	 * Returns the number of deployments that were skipped
+	 *
+	 */
+	public synchronized int getHits() {
+		return mHits;
+	}
+
+	/**
+	 *
+	 * Returns the number of deployments that copied a file to the device
+	 *
+	 */
+	public synchronized int getTransfers() {
+		return mTransfers;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "hits=" + mHits + " transfers=" + mTransfers;
+	}
+
+	private static String findHash(String output) {
+
+		Matcher matcher = HASH.matcher(output);
+
+		return matcher.find() ? matcher.group(1) : null;
+	}
+
+	/**
+	 *
+	 * Returns the MD5 hash of a host file, the hash is computed again only if
+	 * the size or the modification time of the file changed.
+	 *
+	 */
+	static String hash(File file) {
+
+		String path = file.getAbsolutePath();
+
+		synchronized (sHostHashes) {
+
+			HostHash cached = sHostHashes.get(path);
+
+			if (cached != null && cached.mLength == file.length() && cached.mModified == file.lastModified()) {
+				return cached.mHash;
+			}
+		}
+
+		HostHash hash = new HostHash();
+		hash.mLength = file.length();
+		hash.mModified = file.lastModified();
+
+		try {
+
+			MessageDigest digest = MessageDigest.getInstance("MD5");
+
+			InputStream in = new FileInputStream(file);
+
+			try {
+
+				byte[] buffer = new byte[64 * 1024];
+				int len;
+
+				while ((len = in.read(buffer)) != -1) {
+					digest.update(buffer, 0, len);
+				}
+
+			} finally {
+				in.close();
+			}
+
+			StringBuilder hex = new StringBuilder();
+
+			for (byte b : digest.digest()) {
+				hex.append(String.format("%02x", b));
+			}
+
+			hash.mHash = hex.toString();
+
+		} catch (IOException e) {
+			throw new RuntimeException("Error while hashing " + file, e);
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("Error while hashing " + file, e);
+		}
+
+		synchronized (sHostHashes) {
+			sHostHashes.put(path, hash);
+		}
+
+		return hash.mHash;
+	}
+}
@@ -0,0 +1,307 @@
+/*******************************************************************************
+ * Copyright (c) 2014, Lorenzo Keller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package ch.nodo.multiuiautomator;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import ch.nodo.multiuiautomator.SdkTools.EmulatorController;
+
+/**
+ *
+ * Creates, starts and waits for several emulators in parallel.
+ *
+ * At most {@link #setConcurrency(int)} emulators are prepared at the same
+ * time. If one of them fails, the others are interrupted and the emulators
+ * started by the group are stopped, the emulators that were already running
+ * are left running. The time at which each device completed
+ * each step is recorded, see {@link #getTimeline()}.
+ *
+ */
+public class DeviceGroup {
+
+	private final SdkTools mSdk;
+	private final List<String> mNames;
+
+	private int mConcurrency = 4;
+	private long mBootTimeout = -1;
+	private boolean mStartAutomatorServer;
+
+	private final Map<String, Map<String, Long>> mTimeline = new LinkedHashMap<String, Map<String, Long>>();
+	private final List<EmulatorController> mStartedEmulators = new ArrayList<EmulatorController>();
+	private final List<EmulatorController> mStartedServers = new ArrayList<EmulatorController>();
+	private long mStart;
+
+	public DeviceGroup(SdkTools sdk, Collection<String> names) {
+		mSdk = sdk;
+		mNames = new ArrayList<String>(names);
+	}
+
+	/**
+	 *
+	 * Sets the maximum number of emulators prepared at the same time
+	 *
+	 */
+	public void setConcurrency(int concurrency) {
+
+		if (concurrency < 1) {
+			throw new IllegalArgumentException("The concurrency must be at least 1");
+		}
+
+		mConcurrency = concurrency;
+	}
+
+	public int getConcurrency() {
+		return mConcurrency;
+	}
+
+	/**
+	 *
+	 * Sets the maximum time to wait for each emulator to boot, by default the
+	 * timeout of the startup profile of each emulator is used
+	 *
+	 */
+	public void setBootTimeout(long timeout, TimeUnit unit) {
+		mBootTimeout = unit.toMillis(timeout);
+	}
+
+	/**
+	 *
+	 * Sets if the UI automator server is started on each emulator once it
+	 * booted
+	 *
+	 */
+	public void setStartAutomatorServer(boolean start) {
+		mStartAutomatorServer = start;
+	}
+
+	/**
+	 *
+	 * Creates the missing AVDs, starts the emulators and waits until all of
+	 * them booted.
+	 *
+	 * @return the controllers, in the order of the names
+	 */
+	public Map<String, EmulatorController> start() {
+
+		final Map<String, EmulatorController> controllers = new LinkedHashMap<String, EmulatorController>();
+
+		synchronized (mTimeline) {
+			mTimeline.clear();
+			mStartedEmulators.clear();
+			mStartedServers.clear();
+			mStart = System.nanoTime();
+		}
+
+		for (String name : mNames) {
+			controllers.put(name, mSdk.createEmulatorController(name));
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(mConcurrency, Math.max(1, mNames.size())));
+		CompletionService<String> completion = new ExecutorCompletionService<String>(executor);
+
+		List<Future<String>> futures = new ArrayList<Future<String>>();
+
+		try {
+
+			for (final Map.Entry<String, EmulatorController> entry : controllers.entrySet()) {
+				futures.add(completion.submit(new Callable<String>() {
+					@Override
+					public String call() {
+						prepare(entry.getKey(), entry.getValue());
+						return entry.getKey();
+					}
+				}));
+			}
+
+			for (int i = 0; i < futures.size(); i++) {
+				completion.take().get();
+			}
+
+			return controllers;
+
+		} catch (ExecutionException e) {
+
+			abort(executor, futures);
+
+			throw new RuntimeException("Error while starting the emulators\n" + formatTimeline(), e.getCause());
+
+		} catch (InterruptedException e) {
+
+			abort(executor, futures);
+
+			throw new RuntimeException("Interrupted while starting the emulators\n" + formatTimeline(), e);
+
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 *
+	 * Returns for each device the steps it completed, with the time elapsed
+	 * since the start of the group in milliseconds
+	 *
+	 */
+	public Map<String, Map<String, Long>> getTimeline() {
+
+		synchronized (mTimeline) {
+
+			Map<String, Map<String, Long>> copy = new LinkedHashMap<String, Map<String, Long>>();
+
+			for (Map.Entry<String, Map<String, Long>> entry : mTimeline.entrySet()) {
+				copy.put(entry.getKey(), new LinkedHashMap<String, Long>(entry.getValue()));
+			}
+
+			return copy;
+		}
+	}
+
+	/**
+	 *
+	 * Returns the timeline in a readable form, one line per device
+	 *
+	 */
+	public String formatTimeline() {
+
+		StringBuilder builder = new StringBuilder();
+
+		for (Map.Entry<String, Map<String, Long>> entry : getTimeline().entrySet()) {
+
+			builder.append(entry.getKey()).append(':');
+
+			for (Map.Entry<String, Long> step : entry.getValue().entrySet()) {
+				builder.append(' ').append(step.getKey()).append('=').append(step.getValue()).append("ms");
+			}
+
+			builder.append('\n');
+		}
+
+		return builder.toString();
+	}
+
+	private void prepare(String name, EmulatorController controller) {
+
+		record(name, "queued");
+
+		try {
+
+			controller.create();
+			record(name, "created");
+
+			if (!controller.isRunning()) {
+				controller.start();
+				started(mStartedEmulators, controller);
+			}
+			record(name, "started");
+
+			if (mBootTimeout < 0) {
+				controller.waitForReady();
+			} else {
+				controller.waitForReady(mBootTimeout, TimeUnit.MILLISECONDS);
+			}
+			record(name, "booted");
+
+			if (mStartAutomatorServer) {
+				if (!controller.isUIAutomatorServerRunning()) {
+					controller.startUIAutomatorServer();
+					started(mStartedServers, controller);
+				}
+				record(name, "automator");
+			}
+
+		} catch (RuntimeException e) {
+			record(name, "failed");
+			throw e;
+		}
+	}
+
+	private void started(List<EmulatorController> started, EmulatorController controller) {
+
+		synchronized (mTimeline) {
+			started.add(controller);
+		}
+	}
+
+	private void record(String name, String step) {
+
+		synchronized (mTimeline) {
+
+			Map<String, Long> steps = mTimeline.get(name);
+
+			if (steps == null) {
+				steps = new LinkedHashMap<String, Long>();
+				mTimeline.put(name, steps);
+			}
+
+			steps.put(step, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mStart));
+		}
+	}
+
+	/**
+	 * Stops the preparation and undoes what the group started, the emulators
+	 * that were already running may be used by others
+	 */
+	private void abort(ExecutorService executor, List<Future<String>> futures) {
+
+		for (Future<String> future : futures) {
+			future.cancel(true);
+		}
+
+		executor.shutdownNow();
+
+		try {
+			executor.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		List<EmulatorController> emulators;
+		List<EmulatorController> servers;
+
+		synchronized (mTimeline) {
+			emulators = new ArrayList<EmulatorController>(mStartedEmulators);
+			servers = new ArrayList<EmulatorController>(mStartedServers);
+		}
+
+		for (EmulatorController controller : servers) {
+
+			if (emulators.contains(controller)) continue;
+
+			try {
+				controller.stopUIAutomatorServer();
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+
+		for (EmulatorController controller : emulators) {
+			try {
+				controller.stop();
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
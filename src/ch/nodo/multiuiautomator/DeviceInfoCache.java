@@ -0,0 +1,169 @@
+/*******************************************************************************
+ * Copyright (c) 2014, Lorenzo Keller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package ch.nodo.multiuiautomator;
+
+import com.github.uiautomatorstub.AutomatorService;
+import com.github.uiautomatorstub.DeviceInfo;
+
+/**
+ *
+ * Caches the {@link DeviceInfo} of a device on the host.
+ *
+ * The information is split by how often it changes:
+ * <ul>
+ * <li>product name and SDK version never change and are fetched once</li>
+ * <li>display size and rotation are reused for a configurable time and
+ * dropped when the rotation is changed through {@link #invalidateDisplay()}</li>
+ * <li>the current package changes all the time, {@link #fetch()} always asks
+ * the device</li>
+ * </ul>
+ *
+ */
+public class DeviceInfoCache {
+
+	private final AutomatorService mService;
+
+	private long mMaxAge = 1000;
+
+	private DeviceInfo mInfo;
+	private long mFetchedAt;
+	private boolean mDisplayValid;
+	private long mInvalidations;
+
+	public DeviceInfoCache(AutomatorService service) {
+		mService = service;
+	}
+
+	/**
+	 *
+	 * Returns true if the named {@link AutomatorService} method can change
+	 * the rotation of the device, the display information must then be
+	 * dropped with {@link #invalidateDisplay()}.
+	 *
+	 */
+	public static boolean changesRotation(String method) {
+		return method.equals("setOrientation") || method.equals("freezeRotation");
+	}
+
+	/**
+	 *
+	 * Sets for how long the display information is reused
+	 *
+	 * @param maxAge time in milliseconds, 0 to always ask the device
+	 */
+	public synchronized void setMaxAge(long maxAge) {
+		mMaxAge = maxAge;
+	}
+
+	public synchronized long getMaxAge() {
+		return mMaxAge;
+	}
+
+	/**
+	 *
+	 * Returns information that is only valid for the fields that never change
+	 * (product name and SDK version).
+	 *
+	 */
+	public DeviceInfo getStatic() {
+
+		synchronized (this) {
+			if (mInfo != null) {
+				return mInfo;
+			}
+		}
+
+		return fetch();
+	}
+
+	/**
+	 *
+	 * Returns information that is valid for the display fields (size,
+	 * rotation, orientation) and the ones that never change.
+	 *
+	 */
+	public DeviceInfo getDisplay() {
+
+		synchronized (this) {
+			if (mInfo != null && mDisplayValid && System.currentTimeMillis() - mFetchedAt < mMaxAge) {
+				return mInfo;
+			}
+		}
+
+		return fetch();
+	}
+
+	/**
+	 *
+	 * Returns the last information fetched from the device, all its fields
+	 * might be outdated except the ones that never change.
+	 *
+	 */
+	public DeviceInfo getSnapshot() {
+		return getStatic();
+	}
+
+	/**
+	 *
+	 * Asks the device for up to date information and caches it. The device
+	 * is called without holding the lock, so a slow call does not block the
+	 * readers of the cached information.
+	 *
+	 */
+	public DeviceInfo fetch() {
+
+		long invalidations;
+
+		synchronized (this) {
+			invalidations = mInvalidations;
+		}
+
+		DeviceInfo info = mService.deviceInfo();
+
+		synchronized (this) {
+
+			// if the display was invalidated during the call, the answer may predate the change
+			if (invalidations == mInvalidations) {
+				mInfo = info;
+				mFetchedAt = System.currentTimeMillis();
+				mDisplayValid = true;
+			} else if (mInfo == null) {
+				mInfo = info;
+			}
+		}
+
+		return info;
+	}
+
+	/**
+	 *
+	 * Drops the display information, to be called when the rotation of the
+	 * device changes.
+	 *
+	 */
+	public synchronized void invalidateDisplay() {
+		mDisplayValid = false;
+		mInvalidations++;
+	}
+
+	/**
+	 *
+	 * Drops all cached information
+	 *
+	 */
+	public synchronized void invalidate() {
+		mInfo = null;
+		mDisplayValid = false;
+		mInvalidations++;
+	}
+}
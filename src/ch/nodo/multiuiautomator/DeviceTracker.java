@@ -0,0 +1,346 @@
+/*******************************************************************************
+ * Copyright (c) 2014, Lorenzo Keller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package ch.nodo.multiuiautomator;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ *
+ * Follows the state of the devices known to the adb server.
+ *
+ * A single connection subscribes to <code>host:track-devices</code>, the
+ * server sends the device list each time it changes. The changes are
+ * published to the listeners and complete the futures of the threads
+ * waiting for a device to reach a given state, so any number of emulators
+ * can wait without polling adb.
+ *
+ * If the adb server goes away, the devices are reported as gone and the
+ * tracker connects again as soon as the server is back.
+ *
+ */
+public class DeviceTracker {
+
+	/**
+	 * Receives the state changes of the devices
+	 */
+	public interface Listener {
+
+		/**
+		 *
+		 * Called by the tracker thread when the state of a device changes,
+		 * should return quickly.
+		 *
+		 * @param serial serial number of the device
+		 * @param oldState the previous state, <code>null</code> if the device
+		 *            was not known
+		 * @param newState the new state, <code>null</code> if the device is
+		 *            gone
+		 */
+		void stateChanged(String serial, String oldState, String newState);
+	}
+
+	private static final long RECONNECT_DELAY = 500;
+
+	private final AdbClient mClient;
+
+	private final List<Listener> mListeners = new CopyOnWriteArrayList<Listener>();
+	private final List<StateFuture> mWaiters = new ArrayList<StateFuture>();
+
+	private Map<String, String> mStates = new LinkedHashMap<String, String>();
+	private boolean mConnected;
+	private Thread mThread;
+	private Socket mSocket;
+
+	public DeviceTracker(AdbClient client) {
+		mClient = client;
+	}
+
+	/**
+	 *
+	 * Adds a listener, it receives the changes from now on
+	 *
+	 */
+	public void addListener(Listener listener) {
+		mListeners.add(listener);
+		start();
+	}
+
+	public void removeListener(Listener listener) {
+		mListeners.remove(listener);
+	}
+
+	/**
+	 *
+	 * Returns a future that completes when a device reaches a state. The
+	 * future is already completed if the device is in that state.
+	 *
+	 * Cancelling the future stops waiting.
+	 *
+	 * @param serial serial number of the device
+	 * @param state the expected state (device, offline, ...)
+	 * @return a future with the state
+	 */
+	public Future<String> waitForState(String serial, String state) {
+
+		StateFuture future = new StateFuture(serial, state);
+
+		synchronized (this) {
+
+			if (mConnected && state.equals(mStates.get(serial))) {
+				future.complete(state);
+			} else {
+				mWaiters.add(future);
+			}
+		}
+
+		start();
+
+		return future;
+	}
+
+	/**
+	 *
+	 * Returns the last known state of a device, <code>null</code> if it is
+	 * not known
+	 *
+	 */
+	public synchronized String getState(String serial) {
+		return mStates.get(serial);
+	}
+
+	/**
+	 *
+	 * Returns the last known states of all the devices
+	 *
+	 */
+	public synchronized Map<String, String> getStates() {
+		return new LinkedHashMap<String, String>(mStates);
+	}
+
+	/**
+	 *
+	 * Returns true if the tracker currently receives the changes from the adb
+	 * server
+	 *
+	 */
+	public synchronized boolean isConnected() {
+		return mConnected;
+	}
+
+	/**
+	 *
+	 * Stops following the devices, the pending futures are cancelled
+	 *
+	 */
+	public void close() {
+
+		List<StateFuture> waiters;
+
+		synchronized (this) {
+
+			if (mThread != null) {
+				mThread.interrupt();
+				mThread = null;
+			}
+
+			closeSocket();
+
+			waiters = new ArrayList<StateFuture>(mWaiters);
+			mWaiters.clear();
+		}
+
+		for (StateFuture waiter : waiters) {
+			waiter.cancel(false);
+		}
+	}
+
+	private synchronized void start() {
+
+		if (mThread != null) return;
+
+		mThread = new Thread("adb-device-tracker") {
+			@Override
+			public void run() {
+				track(this);
+			}
+		};
+
+		mThread.setDaemon(true);
+		mThread.start();
+	}
+
+	private synchronized boolean isCurrent(Thread thread) {
+		return mThread == thread;
+	}
+
+	private void track(Thread thread) {
+
+		while (isCurrent(thread)) {
+
+			try {
+
+				Socket socket = mClient.trackDevices();
+
+				synchronized (this) {
+
+					if (!isCurrent(thread)) {
+						socket.close();
+						return;
+					}
+
+					mSocket = socket;
+				}
+
+				while (true) {
+					update(AdbClient.readDeviceList(socket.getInputStream()), true);
+				}
+
+			} catch (IOException e) {
+				// the server is not running or went away
+			}
+
+			synchronized (this) {
+				closeSocket();
+			}
+
+			update(new LinkedHashMap<String, String>(), false);
+
+			try {
+				Thread.sleep(RECONNECT_DELAY);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	private void closeSocket() {
+
+		if (mSocket == null) return;
+
+		try {
+			mSocket.close();
+		} catch (IOException e) {
+			// nothing to do
+		}
+
+		mSocket = null;
+	}
+
+	private void update(Map<String, String> states, boolean connected) {
+
+		List<String[]> changes = new ArrayList<String[]>();
+		Map<StateFuture, String> completed = new HashMap<StateFuture, String>();
+
+		synchronized (this) {
+
+			for (Map.Entry<String, String> entry : states.entrySet()) {
+
+				String old = mStates.get(entry.getKey());
+
+				if (!entry.getValue().equals(old)) {
+					changes.add(new String[] { entry.getKey(), old, entry.getValue() });
+				}
+			}
+
+			for (Map.Entry<String, String> entry : mStates.entrySet()) {
+
+				if (!states.containsKey(entry.getKey())) {
+					changes.add(new String[] { entry.getKey(), entry.getValue(), null });
+				}
+			}
+
+			mStates = states;
+			mConnected = connected;
+
+			for (Iterator<StateFuture> it = mWaiters.iterator(); it.hasNext();) {
+
+				StateFuture waiter = it.next();
+
+				if (waiter.isDone()) {
+					it.remove();
+				} else if (waiter.mState.equals(states.get(waiter.mSerial))) {
+					completed.put(waiter, waiter.mState);
+					it.remove();
+				}
+			}
+		}
+
+		for (Map.Entry<StateFuture, String> entry : completed.entrySet()) {
+			entry.getKey().complete(entry.getValue());
+		}
+
+		for (String[] change : changes) {
+
+			for (Listener listener : mListeners) {
+
+				try {
+					listener.stateChanged(change[0], change[1], change[2]);
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		return (mConnected ? "connected " : "disconnected ") + mStates + " waiters=" + mWaiters.size();
+	}
+
+	/**
+	 * Future completed by the tracker, it is never run
+	 */
+	private class StateFuture extends FutureTask<String> {
+
+		private final String mSerial;
+		private final String mState;
+
+		StateFuture(String serial, String state) {
+
+			super(new Callable<String>() {
+				@Override
+				public String call() {
+					throw new IllegalStateException("Completed by the device tracker");
+				}
+			});
+
+			mSerial = serial;
+			mState = state;
+		}
+
+		void complete(String state) {
+			set(state);
+		}
+
+		@Override
+		protected void done() {
+
+			if (isCancelled()) {
+				synchronized (DeviceTracker.this) {
+					mWaiters.remove(this);
+				}
+			}
+		}
+	}
+}
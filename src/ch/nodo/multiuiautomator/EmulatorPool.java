@@ -0,0 +1,463 @@
+/*******************************************************************************
+ * Copyright (c) 2014, Lorenzo Keller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package ch.nodo.multiuiautomator;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import ch.nodo.multiuiautomator.SdkTools.EmulatorController;
+
+import com.github.uiautomatorstub.DeviceInfo;
+
+/**
+ *
+ * Keeps a set of booted emulators, with their UI automator server running,
+ * that tests lease and give back instead of starting their own.
+ *
+ * A device is leased according to its capabilities (API level, screen size)
+ * and is reset in the background when it is returned, before being leased
+ * again. If the reset fails, the emulator is restarted.
+ *
+ */
+public class EmulatorPool {
+
+	/**
+	 * Puts a returned device back in a known state
+	 */
+	public interface Reset {
+		void reset(EmulatorController controller);
+	}
+
+	/**
+	 * Capabilities a leased device must have
+	 */
+	public static class Requirement {
+
+		private int mMinApiLevel;
+		private int mMaxApiLevel = Integer.MAX_VALUE;
+		private int mMinWidth;
+		private int mMinHeight;
+		private String mName;
+
+		public Requirement minApiLevel(int level) {
+			mMinApiLevel = level;
+			return this;
+		}
+
+		public Requirement maxApiLevel(int level) {
+			mMaxApiLevel = level;
+			return this;
+		}
+
+		/**
+		 *
+		 * Requires a screen of at least the given size in pixels, in any
+		 * orientation
+		 *
+		 */
+		public Requirement minScreen(int width, int height) {
+			mMinWidth = Math.min(width, height);
+			mMinHeight = Math.max(width, height);
+			return this;
+		}
+
+		/**
+		 *
+		 * Requires a specific AVD
+		 *
+		 */
+		public Requirement name(String name) {
+			mName = name;
+			return this;
+		}
+
+		boolean matches(EmulatorController controller, DeviceInfo info) {
+
+			int shortSide = Math.min(info.getDisplayWidth(), info.getDisplayHeight());
+			int longSide = Math.max(info.getDisplayWidth(), info.getDisplayHeight());
+
+			return info.getSdkInt() >= mMinApiLevel && info.getSdkInt() <= mMaxApiLevel && shortSide >= mMinWidth
+					&& longSide >= mMinHeight && (mName == null || mName.equals(controller.getName()));
+		}
+
+		@Override
+		public String toString() {
+			return "api " + mMinApiLevel + "-" + (mMaxApiLevel == Integer.MAX_VALUE ? "" : mMaxApiLevel) + " screen>="
+					+ mMinWidth + "x" + mMinHeight + (mName == null ? "" : " name=" + mName);
+		}
+	}
+
+	/**
+	 * Goes back to the home screen and forgets the cached device state
+	 */
+	public static final Reset HOME = new Reset() {
+		@Override
+		public void reset(EmulatorController controller) {
+			controller.executeCommandForOutput("input keyevent KEYCODE_HOME");
+			controller.getDeviceInfoCache().invalidate();
+		}
+	};
+
+	private enum State {
+		IDLE, LEASED, RESETTING
+	}
+
+	private final SdkTools mSdk;
+	private final List<String> mNames;
+
+	private final Map<EmulatorController, DeviceInfo> mCapabilities = new LinkedHashMap<EmulatorController, DeviceInfo>();
+	private final Map<EmulatorController, State> mStates = new HashMap<EmulatorController, State>();
+	private final Map<EmulatorController, Long> mLeaseStarts = new HashMap<EmulatorController, Long>();
+
+	private final LatencyStats mLeaseWaits = new LatencyStats(1024);
+
+	private final ExecutorService mResetExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+
+		private int mCount;
+
+		@Override
+		public synchronized Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "emulator-pool-reset-" + (mCount++));
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private Reset mReset = HOME;
+	private int mConcurrency = 4;
+
+	private long mStartTime;
+	private long mLeasedNanos;
+	private int mLeases;
+	private int mTimeouts;
+	private int mRestarts;
+	private boolean mClosed;
+
+	/**
+	 * @param sdk the SDK used to start the emulators
+	 * @param avdNames the AVDs of the pool, one emulator each
+	 */
+	public EmulatorPool(SdkTools sdk, Collection<String> avdNames) {
+		mSdk = sdk;
+		mNames = new ArrayList<String>(avdNames);
+	}
+
+	/**
+	 *
+	 * Sets how the devices are reset when returned, {@link #HOME} by default
+	 *
+	 */
+	public synchronized void setReset(Reset reset) {
+		mReset = reset;
+	}
+
+	/**
+	 *
+	 * Sets how many emulators are booted at the same time by {@link #start()}
+	 *
+	 */
+	public void setConcurrency(int concurrency) {
+		mConcurrency = concurrency;
+	}
+
+	/**
+	 *
+	 * Boots all the emulators of the pool and starts their UI automator
+	 * servers, returns once all of them are ready to be leased.
+	 *
+	 */
+	public void start() {
+
+		DeviceGroup group = new DeviceGroup(mSdk, mNames);
+		group.setConcurrency(mConcurrency);
+		group.setStartAutomatorServer(true);
+
+		Map<String, EmulatorController> controllers = group.start();
+
+		synchronized (this) {
+
+			for (EmulatorController controller : controllers.values()) {
+				mCapabilities.put(controller, controller.getDeviceInfoCache().getStatic());
+				mStates.put(controller, State.IDLE);
+			}
+
+			mStartTime = System.nanoTime();
+			notifyAll();
+		}
+	}
+
+	/**
+	 *
+	 * Leases a device, waiting until one that matches is idle
+	 *
+	 * @param requirement the capabilities the device must have
+	 * @param timeout maximum time to wait
+	 * @param unit unit of the timeout
+	 * @return the controller of the device, to be given back with
+	 *         {@link #release(EmulatorController)}
+	 */
+	public synchronized EmulatorController lease(Requirement requirement, long timeout, TimeUnit unit) {
+
+		long start = System.nanoTime();
+		long deadline = start + unit.toNanos(timeout);
+
+		try {
+
+			while (true) {
+
+				if (mClosed) {
+					throw new IllegalStateException("The emulator pool is closed");
+				}
+
+				boolean possible = false;
+
+				for (Map.Entry<EmulatorController, DeviceInfo> entry : mCapabilities.entrySet()) {
+
+					if (!requirement.matches(entry.getKey(), entry.getValue())) continue;
+
+					possible = true;
+
+					if (mStates.get(entry.getKey()) == State.IDLE) {
+
+						EmulatorController controller = entry.getKey();
+
+						mStates.put(controller, State.LEASED);
+						mLeaseStarts.put(controller, System.nanoTime());
+						mLeases++;
+						mLeaseWaits.record(System.nanoTime() - start);
+
+						return controller;
+					}
+				}
+
+				if (!possible && !mCapabilities.isEmpty()) {
+					throw new RuntimeException("No device of the pool matches " + requirement);
+				}
+
+				long remaining = deadline - System.nanoTime();
+
+				if (remaining <= 0) {
+					mTimeouts++;
+					throw new RuntimeException("Timeout while waiting for a device matching " + requirement);
+				}
+
+				TimeUnit.NANOSECONDS.timedWait(this, remaining);
+			}
+
+		} catch (InterruptedException e) {
+			throw new RuntimeException("Interrupted while waiting for a device", e);
+		}
+	}
+
+	/**
+	 *
+	 * Gives back a leased device, it is reset in the background and can then
+	 * be leased again. Does nothing once the pool is closed.
+	 *
+	 */
+	public synchronized void release(final EmulatorController controller) {
+
+		if (mClosed) return;
+
+		if (mStates.get(controller) != State.LEASED) {
+			throw new IllegalStateException(controller + " is not leased from this pool");
+		}
+
+		mLeasedNanos += System.nanoTime() - mLeaseStarts.remove(controller);
+		mStates.put(controller, State.RESETTING);
+
+		final Reset reset = mReset;
+
+		mResetExecutor.submit(new Runnable() {
+			@Override
+			public void run() {
+				reset(controller, reset);
+			}
+		});
+	}
+
+	private void reset(EmulatorController controller, Reset reset) {
+
+		try {
+
+			reset.reset(controller);
+
+		} catch (RuntimeException e) {
+
+			e.printStackTrace();
+
+			try {
+				restart(controller);
+			} catch (RuntimeException restartError) {
+
+				restartError.printStackTrace();
+
+				synchronized (this) {
+					mCapabilities.remove(controller);
+					mStates.remove(controller);
+					notifyAll();
+				}
+
+				return;
+			}
+		}
+
+		synchronized (this) {
+
+			if (mStates.containsKey(controller)) {
+				mStates.put(controller, State.IDLE);
+				notifyAll();
+			}
+		}
+	}
+
+	private void restart(EmulatorController controller) {
+
+		checkOpen();
+
+		synchronized (this) {
+			mRestarts++;
+		}
+
+		controller.stop();
+
+		checkOpen();
+		controller.start();
+
+		try {
+			controller.waitForReady();
+			checkOpen();
+			controller.startUIAutomatorServer();
+			checkOpen();
+		} catch (RuntimeException e) {
+			// the pool may have been closed meanwhile, do not leave the emulator running
+			controller.stop();
+			throw e;
+		}
+	}
+
+	private synchronized void checkOpen() {
+
+		if (mClosed) {
+			throw new IllegalStateException("The emulator pool is closed");
+		}
+	}
+
+	/**
+	 *
+	 * Returns the time the leases waited for a device
+	 *
+	 */
+	public LatencyStats getLeaseWaitStats() {
+		return mLeaseWaits;
+	}
+
+	/**
+	 *
+	 * Returns the fraction of the time the devices were leased since the pool
+	 * started, between 0 and 1
+	 *
+	 */
+	public synchronized double getUtilization() {
+
+		if (mStartTime == 0 || mCapabilities.isEmpty()) return 0;
+
+		long now = System.nanoTime();
+		long leased = mLeasedNanos;
+
+		for (long start : mLeaseStarts.values()) {
+			leased += now - start;
+		}
+
+		return (double) leased / ((now - mStartTime) * mCapabilities.size());
+	}
+
+	public synchronized int getSize() {
+		return mCapabilities.size();
+	}
+
+	public synchronized int getIdleCount() {
+		return count(State.IDLE);
+	}
+
+	public synchronized int getLeasedCount() {
+		return count(State.LEASED);
+	}
+
+	public synchronized int getLeaseCount() {
+		return mLeases;
+	}
+
+	public synchronized int getTimeouts() {
+		return mTimeouts;
+	}
+
+	public synchronized int getRestarts() {
+		return mRestarts;
+	}
+
+	private int count(State state) {
+
+		int count = 0;
+
+		for (State current : mStates.values()) {
+			if (current == state) count++;
+		}
+
+		return count;
+	}
+
+	/**
+	 *
+	 * Stops all the emulators of the pool, leased or not
+	 *
+	 */
+	public void close() {
+
+		List<EmulatorController> controllers;
+
+		synchronized (this) {
+			mClosed = true;
+			controllers = new ArrayList<EmulatorController>(mCapabilities.keySet());
+			mCapabilities.clear();
+			mStates.clear();
+			mLeaseStarts.clear();
+			notifyAll();
+		}
+
+		mResetExecutor.shutdownNow();
+
+		for (EmulatorController controller : controllers) {
+			try {
+				controller.stop();
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("size=%d idle=%d leased=%d leases=%d timeouts=%d restarts=%d utilization=%.0f%% wait: %s",
+				getSize(), getIdleCount(), getLeasedCount(), mLeases, mTimeouts, mRestarts, getUtilization() * 100,
+				mLeaseWaits);
+	}
+}
@@ -0,0 +1,115 @@
+/*******************************************************************************
+ * Copyright (c) 2014, Lorenzo Keller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package ch.nodo.multiuiautomator;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.SocketException;
+import java.net.URL;
+import java.util.Map;
+
+import ch.nodo.multiuiautomator.AutomatorConnectionPool.Connection;
+
+/**
+ *
+ * A JSON-RPC client that sends each payload as a length prefixed frame over
+ * a plain TCP connection, without any HTTP framing.
+ *
+ * Every request and every response is a 4 byte big endian length followed
+ * by the payload. The pooled connections are reused exactly as for HTTP.
+ *
+ * The class extends {@link PooledJsonRpcHttpClient} only because jsonrpc4j
+ * proxies require a {@link com.googlecode.jsonrpc4j.JsonRpcHttpClient}; the
+ * service URL is not used to reach the server.
+ *
+ */
+public class FramedJsonRpcClient extends PooledJsonRpcHttpClient {
+
+	private static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+
+	public FramedJsonRpcClient(URL serviceUrl, AutomatorConnectionPool pool) {
+		super(serviceUrl, pool);
+	}
+
+	/**
+	 *
+	 * Checks if a framed server answers on the pool endpoint.
+	 *
+	 * @return true if the server replied to a ping
+	 */
+	public boolean probe() {
+		try {
+			byte[] response = exchange(WireEncoding.JSON.encode(createRequest("ping", new Object[0], nextId())),
+					WireEncoding.JSON, null);
+			return "pong".equals(readResult(WireEncoding.JSON.decode(response), String.class));
+		} catch (Throwable t) {
+			return false;
+		}
+	}
+
+	@Override
+	protected byte[] exchange(byte[] body, WireEncoding encoding, Map<String, String> extraHeaders) throws IOException {
+
+		AutomatorConnectionPool pool = getPool();
+
+		Connection connection = pool.acquire();
+
+		try {
+
+			byte[] response;
+
+			try {
+				response = send(connection, body);
+			} catch (StaleConnectionException e) {
+				connection = pool.reconnect(connection);
+				response = send(connection, body);
+			}
+
+			pool.release(connection);
+
+			connection = null;
+
+			return response;
+
+		} finally {
+			if (connection != null) {
+				pool.discard(connection);
+			}
+		}
+	}
+
+	private byte[] send(Connection connection, byte[] body) throws IOException {
+
+		DataInputStream in = new DataInputStream(connection.getInputStream());
+		DataOutputStream out = new DataOutputStream(connection.getOutputStream());
+
+		try {
+			out.writeInt(body.length);
+			out.write(body);
+			out.flush();
+		} catch (SocketException e) {
+			if (connection.isReused()) throw new StaleConnectionException();
+			throw e;
+		}
+
+		// the server may have run the request, failures are not retried from here on
+		int length = in.readInt();
+
+		if (length < 0 || length > MAX_FRAME_SIZE) {
+			throw new IOException("Invalid frame length " + length);
+		}
+
+		return readFully(in, length);
+	}
+}
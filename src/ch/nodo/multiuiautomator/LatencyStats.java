@@ -0,0 +1,92 @@
+/*******************************************************************************
+ * Copyright (c) 2014, Lorenzo Keller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package ch.nodo.multiuiautomator;
+
+import java.util.Arrays;
+
+/**
+ *
+ * Keeps the duration of the most recent calls and computes percentiles over
+ * them.
+ *
+ */
+public class LatencyStats {
+
+	private final long[] mSamples;
+	private int mNext;
+	private int mSize;
+	private long mCount;
+
+	/**
+	 * @param capacity number of recent samples kept
+	 */
+	public LatencyStats(int capacity) {
+		mSamples = new long[capacity];
+	}
+
+	/**
+	 *
+	 * Records the duration of a call
+	 *
+	 * @param nanos duration in nanoseconds
+	 */
+	public synchronized void record(long nanos) {
+		mSamples[mNext] = nanos;
+		mNext = (mNext + 1) % mSamples.length;
+		mSize = Math.min(mSize + 1, mSamples.length);
+		mCount++;
+	}
+
+	/**
+	 *
+	 * Returns the total number of recorded calls
+	 *
+	 */
+	public synchronized long getCount() {
+		return mCount;
+	}
+
+	/**
+	 *
+	 * Returns the given percentile of the recent samples in microseconds, or
+	 * -1 if nothing was recorded yet.
+	 *
+	 * @param percentile a value between 0 and 100
+	 */
+	public long getPercentileMicros(double percentile) {
+
+		long[] samples;
+
+		synchronized (this) {
+			if (mSize == 0) return -1;
+			samples = Arrays.copyOf(mSamples, mSize);
+		}
+
+		Arrays.sort(samples);
+
+		int index = (int) Math.ceil(percentile / 100.0 * samples.length) - 1;
+
+		return samples[Math.max(0, Math.min(index, samples.length - 1))] / 1000;
+	}
+
+	public synchronized void reset() {
+		mNext = 0;
+		mSize = 0;
+		mCount = 0;
+	}
+
+	@Override
+	public String toString() {
+		return "calls=" + getCount() + " p50=" + getPercentileMicros(50) + "us p99=" + getPercentileMicros(99) + "us";
+	}
+}
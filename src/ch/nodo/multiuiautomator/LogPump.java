@@ -0,0 +1,321 @@
+/*******************************************************************************
+ * Copyright (c) 2014, Lorenzo Keller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package ch.nodo.multiuiautomator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ * Drains the output of long running child processes (emulators, automator
+ * servers, ...) with a fixed number of threads, whatever the number of
+ * processes.
+ *
+ * Each line is printed with the name of the device it comes from and kept
+ * in a bounded buffer of recent lines for that device, useful to explain
+ * failures.
+ *
+ * Process pipes cannot be multiplexed with a selector, so each thread polls
+ * its streams and only reads the bytes that are already available; it
+ * sleeps briefly when none of them had anything to read.
+ *
+ */
+public class LogPump {
+
+	private static final int DEFAULT_THREADS = 2;
+
+	private static final int MAX_LINE_LENGTH = 4096;
+
+	private static final long IDLE_SLEEP = 20;
+
+	private static final long EXIT_DRAIN_TIME = TimeUnit.MILLISECONDS.toNanos(500);
+
+	private static LogPump sDefault;
+
+	private final List<List<Source>> mSources = new ArrayList<List<Source>>();
+	private final Map<String, ArrayDeque<String>> mRecent = new HashMap<String, ArrayDeque<String>>();
+
+	private int mNext;
+	private int mMaxLines = 500;
+	private PrintStream mOut = System.out;
+
+	/**
+	 *
+	 * Returns the pump shared by all the emulators
+	 *
+	 */
+	public static synchronized LogPump getDefault() {
+
+		if (sDefault == null) {
+			sDefault = new LogPump(DEFAULT_THREADS);
+		}
+
+		return sDefault;
+	}
+
+	/**
+	 * @param threads number of threads draining the processes
+	 */
+	public LogPump(int threads) {
+
+		for (int i = 0; i < threads; i++) {
+
+			final List<Source> sources = new CopyOnWriteArrayList<Source>();
+
+			mSources.add(sources);
+
+			Thread thread = new Thread("log-pump-" + i) {
+				@Override
+				public void run() {
+					pump(sources);
+				}
+			};
+
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	/**
+	 *
+	 * Sets the number of recent lines kept for each device
+	 *
+	 */
+	public synchronized void setMaxLines(int maxLines) {
+		mMaxLines = maxLines;
+	}
+
+	/**
+	 *
+	 * Sets where the lines are printed, <code>null</code> to only keep them
+	 * in the recent lines.
+	 *
+	 */
+	public synchronized void setOutput(PrintStream out) {
+		mOut = out;
+	}
+
+	/**
+	 *
+	 * Starts draining the standard output and error of a process. The streams
+	 * are closed once the process terminated and its output was read.
+	 *
+	 * @param device name of the device the process belongs to
+	 * @param source short description of the process, part of the prefix
+	 * @param process the process
+	 */
+	public synchronized void register(String device, String source, Process process) {
+
+		List<Source> sources = mSources.get(mNext);
+		mNext = (mNext + 1) % mSources.size();
+
+		String prefix = "[" + device + "/" + source + "] ";
+
+		sources.add(new Source(device, prefix, process, process.getInputStream()));
+		sources.add(new Source(device, prefix, process, process.getErrorStream()));
+	}
+
+	/**
+	 *
+	 * Returns the recent lines printed by the processes of a device
+	 *
+	 */
+	public synchronized List<String> getRecentLines(String device) {
+
+		ArrayDeque<String> lines = mRecent.get(device);
+
+		return lines == null ? new ArrayList<String>() : new ArrayList<String>(lines);
+	}
+
+	/**
+	 *
+	 * Forgets the recent lines of a device
+	 *
+	 */
+	public synchronized void clear(String device) {
+		mRecent.remove(device);
+	}
+
+	private synchronized void emit(Source source, String line) {
+
+		String prefixed = source.mPrefix + line;
+
+		if (mOut != null) {
+			mOut.println(prefixed);
+		}
+
+		ArrayDeque<String> lines = mRecent.get(source.mDevice);
+
+		if (lines == null) {
+			lines = new ArrayDeque<String>();
+			mRecent.put(source.mDevice, lines);
+		}
+
+		lines.addLast(prefixed);
+
+		while (lines.size() > mMaxLines) {
+			lines.removeFirst();
+		}
+	}
+
+	private void pump(List<Source> sources) {
+
+		byte[] buffer = new byte[8192];
+
+		while (true) {
+
+			boolean idle = true;
+
+			for (Source source : sources) {
+
+				try {
+
+					if (source.poll(buffer)) {
+						idle = false;
+					}
+
+				} catch (IOException e) {
+					source.finish();
+				}
+
+				if (source.mFinished) {
+					sources.remove(source);
+				}
+			}
+
+			if (idle) {
+				try {
+					Thread.sleep(IDLE_SLEEP);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+	}
+
+	private class Source {
+
+		private final String mDevice;
+		private final String mPrefix;
+		private final Process mProcess;
+		private final InputStream mIn;
+
+		private final ByteArrayOutputStream mLine = new ByteArrayOutputStream();
+		private boolean mFinished;
+		private long mExitTime;
+
+		Source(String device, String prefix, Process process, InputStream in) {
+			mDevice = device;
+			mPrefix = prefix;
+			mProcess = process;
+			mIn = in;
+		}
+
+		/**
+		 * Reads what is available without blocking, returns true if
+		 * something was read. Once the process exited, keeps reading what
+		 * becomes available for a short time before closing the stream.
+		 */
+		boolean poll(byte[] buffer) throws IOException {
+
+			int available = mIn.available();
+
+			if (available == 0) {
+
+				if (!hasExited()) {
+					return false;
+				}
+
+				// the last output, often the reason of a crash, may still be
+				// on its way. A blocking read could wait forever: children of
+				// the process may have inherited the pipe.
+				long now = System.nanoTime();
+
+				if (mExitTime == 0) {
+					mExitTime = now;
+				}
+
+				if (now - mExitTime >= EXIT_DRAIN_TIME) {
+					finish();
+				}
+
+				return false;
+			}
+
+			int len = mIn.read(buffer, 0, Math.min(available, buffer.length));
+
+			if (len == -1) {
+				finish();
+				return false;
+			}
+
+			split(buffer, len);
+
+			return true;
+		}
+
+		private void split(byte[] buffer, int len) {
+
+			for (int i = 0; i < len; i++) {
+
+				byte b = buffer[i];
+
+				if (b == '\n' || mLine.size() >= MAX_LINE_LENGTH) {
+					flushLine();
+				}
+
+				if (b != '\n' && b != '\r') {
+					mLine.write(b);
+				}
+			}
+		}
+
+		private boolean hasExited() {
+			try {
+				mProcess.exitValue();
+				return true;
+			} catch (IllegalThreadStateException e) {
+				return false;
+			}
+		}
+
+		private void flushLine() {
+			emit(this, mLine.toString());
+			mLine.reset();
+		}
+
+		void finish() {
+
+			if (mLine.size() > 0) {
+				flushLine();
+			}
+
+			mFinished = true;
+
+			try {
+				mIn.close();
+			} catch (IOException e) {
+				// nothing to do
+			}
+		}
+	}
+}
@@ -0,0 +1,505 @@
+/*******************************************************************************
+ * Copyright (c) 2014, Lorenzo Keller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package ch.nodo.multiuiautomator;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Type;
+import java.net.SocketException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ch.nodo.multiuiautomator.AutomatorConnectionPool.Connection;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.googlecode.jsonrpc4j.DefaultExceptionResolver;
+import com.googlecode.jsonrpc4j.ExceptionResolver;
+import com.googlecode.jsonrpc4j.JsonRpcHttpClient;
+
+/**
+ *
+ * A JSON-RPC client that speaks HTTP/1.1 over the persistent connections of
+ * an {@link AutomatorConnectionPool} instead of opening a new
+ * {@link java.net.HttpURLConnection} for every call.
+ *
+ */
+public class PooledJsonRpcHttpClient extends JsonRpcHttpClient {
+
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	private final AutomatorConnectionPool mPool;
+	private final String mPath;
+	private final AtomicLong mNextId = new AtomicLong();
+	private ExceptionResolver mExceptionResolver = DefaultExceptionResolver.INSTANCE;
+	private volatile boolean mBatchSupported = true;
+	private WireEncoding mPreferredEncoding = WireEncoding.JSON;
+	private WireEncoding mEncoding;
+	private final LatencyStats mLatency = new LatencyStats(1024);
+
+	public PooledJsonRpcHttpClient(URL serviceUrl, AutomatorConnectionPool pool) {
+		super(serviceUrl);
+		mPool = pool;
+		mPath = serviceUrl.getFile().isEmpty() ? "/" : serviceUrl.getFile();
+	}
+
+	public AutomatorConnectionPool getPool() {
+		return mPool;
+	}
+
+	/**
+	 *
+	 * Returns the duration of the recent calls made by this client
+	 *
+	 */
+	public LatencyStats getLatencyStats() {
+		return mLatency;
+	}
+
+	@Override
+	public Object invoke(String methodName, Object argument, Type returnType,
+			Map<String, String> extraHeaders) throws Throwable {
+
+		long start = System.nanoTime();
+
+		try {
+			return doInvoke(methodName, argument, returnType, extraHeaders);
+		} finally {
+			mLatency.record(System.nanoTime() - start);
+		}
+	}
+
+	private Object doInvoke(String methodName, Object argument, Type returnType,
+			Map<String, String> extraHeaders) throws Throwable {
+
+		WireEncoding encoding = getEncoding();
+
+		if (encoding == WireEncoding.JSON) {
+
+			ByteArrayOutputStream request = new ByteArrayOutputStream();
+
+			writeRequest(methodName, argument, request, nextId());
+
+			byte[] response = exchange(request.toByteArray(), encoding, extraHeaders);
+
+			return readResponse(returnType, new ByteArrayInputStream(response));
+		}
+
+		byte[] response = exchange(encoding.encode(createRequest(methodName, argument, nextId())),
+				encoding, extraHeaders);
+
+		return readResult(WireEncoding.detect(response).decode(response), returnType);
+	}
+
+	/**
+	 *
+	 * Selects the encoding to use for the payloads. The encoding is
+	 * negotiated with the server on the next call and JSON is used if the
+	 * server does not support it.
+	 *
+	 * @param encoding
+	 */
+	public synchronized void setPreferredEncoding(WireEncoding encoding) {
+		mPreferredEncoding = encoding;
+		mEncoding = null;
+	}
+
+	/**
+	 *
+	 * Returns the encoding used for the payloads, negotiating it with the
+	 * server if needed. If the negotiation fails, JSON is used until
+	 * {@link #setPreferredEncoding(WireEncoding)} is called again.
+	 *
+	 * @return
+	 * @throws IOException
+	 */
+	public synchronized WireEncoding getEncoding() throws IOException {
+
+		if (mEncoding == null) {
+			mEncoding = negotiate(mPreferredEncoding);
+		}
+
+		return mEncoding;
+	}
+
+	private WireEncoding negotiate(WireEncoding encoding) {
+
+		if (encoding == WireEncoding.JSON || !encoding.isAvailable()) {
+			return WireEncoding.JSON;
+		}
+
+		byte[] response;
+
+		try {
+			response = exchange(encoding.encode(createRequest("ping", new Object[0], nextId())),
+					encoding, null);
+		} catch (IOException e) {
+			// the server may not accept the encoding at all, the calls use JSON
+			return WireEncoding.JSON;
+		}
+
+		if (WireEncoding.detect(response) != encoding) {
+			return WireEncoding.JSON;
+		}
+
+		try {
+			return "pong".equals(readResult(encoding.decode(response), String.class)) ? encoding : WireEncoding.JSON;
+		} catch (Throwable t) {
+			return WireEncoding.JSON;
+		}
+	}
+
+	/**
+	 *
+	 * Builds a JSON-RPC 2.0 request object
+	 *
+	 */
+	ObjectNode createRequest(String methodName, Object argument, String id) {
+
+		ObjectMapper mapper = getObjectMapper();
+
+		ObjectNode request = mapper.createObjectNode();
+		request.put("jsonrpc", "2.0");
+		request.put("method", methodName);
+		request.put("id", id);
+		request.put("params", mapper.valueToTree(argument));
+
+		return request;
+	}
+
+	/**
+	 *
+	 * Extracts the result from a JSON-RPC response object, throwing the error
+	 * it reports if any.
+	 *
+	 */
+	Object readResult(JsonNode response, Type returnType) throws Throwable {
+
+		if (response == null || !response.isObject()) {
+			throw new IOException("Invalid JSON-RPC response");
+		}
+
+		if (response.has("error") && !response.get("error").isNull()) {
+			Throwable error = mExceptionResolver.resolveException((ObjectNode) response);
+			throw error != null ? error : new IOException("Invalid JSON-RPC error: " + response.get("error"));
+		}
+
+		if (returnType == void.class || returnType == Void.class || !response.has("result")) {
+			return null;
+		}
+
+		ObjectMapper mapper = getObjectMapper();
+
+		return mapper.readValue(mapper.treeAsTokens(response.get("result")),
+				mapper.getTypeFactory().constructType(returnType));
+	}
+
+	@Override
+	public void setExceptionResolver(ExceptionResolver exceptionResolver) {
+		super.setExceptionResolver(exceptionResolver);
+		mExceptionResolver = exceptionResolver;
+	}
+
+	/**
+	 *
+	 * Returns false once the server rejected a batch request
+	 *
+	 */
+	boolean isBatchSupported() {
+		return mBatchSupported;
+	}
+
+	void setBatchSupported(boolean supported) {
+		mBatchSupported = supported;
+	}
+
+	/**
+	 *
+	 * Returns a new request id unique for this client
+	 *
+	 */
+	protected String nextId() {
+		return Long.toString(mNextId.incrementAndGet());
+	}
+
+	/**
+	 *
+	 * Posts a raw JSON-RPC payload and returns the raw response body.
+	 *
+	 * The pool does not hand out idle connections the server already closed.
+	 * If a pooled connection turns out to be closed by the server while the
+	 * request is written, the request is sent again on a fresh connection.
+	 * Failures after the request was written are not retried, since the
+	 * server may already have run it.
+	 *
+	 * @param body the serialized request
+	 * @param encoding the encoding of the request
+	 * @param extraHeaders additional HTTP headers (can be <code>null</code>)
+	 * @return the body of the response
+	 * @throws IOException
+	 */
+	protected byte[] exchange(byte[] body, WireEncoding encoding, Map<String, String> extraHeaders) throws IOException {
+
+		Map<String, String> headers = new HashMap<String, String>(getHeaders());
+
+		headers.put("Content-Type", encoding.getContentType());
+		headers.put("Accept", encoding.getContentType() + ", " + WireEncoding.JSON.getContentType());
+
+		if (extraHeaders != null) {
+			headers.putAll(extraHeaders);
+		}
+
+		Connection connection = mPool.acquire();
+
+		try {
+
+			Response response;
+
+			try {
+				response = send(connection, body, headers);
+			} catch (StaleConnectionException e) {
+				connection = mPool.reconnect(connection);
+				response = send(connection, body, headers);
+			}
+
+			if (response.mKeepAlive) {
+				mPool.release(connection);
+			} else {
+				mPool.discard(connection);
+			}
+
+			connection = null;
+
+			if (response.mStatus / 100 != 2 && response.mBody.length == 0) {
+				throw new HttpStatusException(response.mStatus);
+			}
+
+			return response.mBody;
+
+		} finally {
+			if (connection != null) {
+				mPool.discard(connection);
+			}
+		}
+	}
+
+	private Response send(Connection connection, byte[] body, Map<String, String> headers) throws IOException {
+
+		StringBuilder head = new StringBuilder();
+
+		head.append("POST ").append(mPath).append(" HTTP/1.1\r\n");
+		head.append("Host: ").append(mPool.getHost()).append(':').append(mPool.getPort()).append("\r\n");
+		head.append("Connection: keep-alive\r\n");
+		head.append("Content-Length: ").append(body.length).append("\r\n");
+
+		for (Map.Entry<String, String> header : headers.entrySet()) {
+			head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+		}
+
+		head.append("\r\n");
+
+		try {
+			OutputStream out = connection.getOutputStream();
+			out.write(head.toString().getBytes(ASCII));
+			out.write(body);
+			out.flush();
+		} catch (SocketException e) {
+			if (connection.isReused()) throw new StaleConnectionException();
+			throw e;
+		}
+
+		// the server may have run the request, failures are not retried from here on
+		String statusLine = readLine(connection.getInputStream());
+
+		if (statusLine == null) {
+			throw new EOFException("Automator server closed the connection");
+		}
+
+		return readResponse(statusLine, connection.getInputStream());
+	}
+
+	private static Response readResponse(String statusLine, InputStream in) throws IOException {
+
+		String[] status = statusLine.split(" ", 3);
+
+		if (status.length < 2 || !status[0].startsWith("HTTP/")) {
+			throw new IOException("Invalid HTTP status line: " + statusLine);
+		}
+
+		Response response = new Response();
+
+		response.mStatus = Integer.parseInt(status[1]);
+		response.mKeepAlive = !status[0].equals("HTTP/1.0");
+
+		int contentLength = -1;
+		boolean chunked = false;
+
+		String line;
+
+		while ((line = readLine(in)) != null && !line.isEmpty()) {
+
+			int separator = line.indexOf(':');
+
+			if (separator < 0) continue;
+
+			String name = line.substring(0, separator).trim();
+			String value = line.substring(separator + 1).trim();
+
+			if (name.equalsIgnoreCase("Content-Length")) {
+				contentLength = Integer.parseInt(value);
+			} else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+				chunked = value.equalsIgnoreCase("chunked");
+			} else if (name.equalsIgnoreCase("Connection")) {
+				if (value.equalsIgnoreCase("close")) {
+					response.mKeepAlive = false;
+				} else if (value.equalsIgnoreCase("keep-alive")) {
+					response.mKeepAlive = true;
+				}
+			}
+		}
+
+		if (chunked) {
+			response.mBody = readChunked(in);
+		} else if (contentLength >= 0) {
+			response.mBody = readFully(in, contentLength);
+		} else {
+			response.mBody = readToEnd(in);
+			response.mKeepAlive = false;
+		}
+
+		return response;
+	}
+
+	private static byte[] readChunked(InputStream in) throws IOException {
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		while (true) {
+
+			String line = readLine(in);
+
+			if (line == null) throw new EOFException("Truncated chunked response");
+
+			int extension = line.indexOf(';');
+
+			int size = Integer.parseInt((extension < 0 ? line : line.substring(0, extension)).trim(), 16);
+
+			if (size == 0) break;
+
+			out.write(readFully(in, size));
+
+			readLine(in);
+		}
+
+		// skip trailers
+		String line;
+		while ((line = readLine(in)) != null && !line.isEmpty()) {}
+
+		return out.toByteArray();
+	}
+
+	static byte[] readFully(InputStream in, int length) throws IOException {
+
+		byte[] data = new byte[length];
+
+		int offset = 0;
+
+		while (offset < length) {
+
+			int read = in.read(data, offset, length - offset);
+
+			if (read == -1) throw new EOFException("Truncated response");
+
+			offset += read;
+		}
+
+		return data;
+	}
+
+	private static byte[] readToEnd(InputStream in) throws IOException {
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		byte[] buffer = new byte[4096];
+		int len;
+
+		while ((len = in.read(buffer)) != -1) {
+			out.write(buffer, 0, len);
+		}
+
+		return out.toByteArray();
+	}
+
+	/**
+	 * Reads a CRLF terminated line, returns <code>null</code> if the stream
+	 * ended before any character was read.
+	 */
+	private static String readLine(InputStream in) throws IOException {
+
+		StringBuilder line = new StringBuilder();
+
+		int ch;
+
+		while ((ch = in.read()) != -1) {
+
+			if (ch == '\n') {
+				int len = line.length();
+				if (len > 0 && line.charAt(len - 1) == '\r') {
+					line.setLength(len - 1);
+				}
+				return line.toString();
+			}
+
+			line.append((char) ch);
+		}
+
+		return line.length() == 0 ? null : line.toString();
+	}
+
+	private static class Response {
+		int mStatus;
+		boolean mKeepAlive;
+		byte[] mBody;
+	}
+
+	static class StaleConnectionException extends IOException {
+		private static final long serialVersionUID = 1L;
+	}
+
+	/**
+	 * The server answered with an HTTP error status and no body
+	 */
+	static class HttpStatusException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int mStatus;
+
+		HttpStatusException(int status) {
+			super("Automator server returned HTTP status " + status);
+			mStatus = status;
+		}
+
+		int getStatus() {
+			return mStatus;
+		}
+	}
+}
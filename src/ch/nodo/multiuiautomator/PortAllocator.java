@@ -0,0 +1,220 @@
+/*******************************************************************************
+ * Copyright (c) 2014, Lorenzo Keller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package ch.nodo.multiuiautomator;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ *
+ * Reserves blocks of consecutive local ports (emulator console and adb
+ * ports, forwarded automator ports, ...) until they are released.
+ *
+ * A reserved block is never given out twice in this process, and other
+ * processes using this class skip it too: each block is protected by a lock
+ * on a file of a directory shared by all of them. A block is also skipped if
+ * one of its ports is already bound by another program.
+ *
+ */
+public class PortAllocator {
+
+	/**
+	 * A block of ports reserved until {@link #release()} is called
+	 */
+	public class Reservation {
+
+		private final int mPort;
+		private final int mCount;
+		private final RandomAccessFile mFile;
+		private final FileLock mLock;
+
+		private boolean mReleased;
+
+		private Reservation(int port, int count, RandomAccessFile file, FileLock lock) {
+			mPort = port;
+			mCount = count;
+			mFile = file;
+			mLock = lock;
+		}
+
+		/**
+		 *
+		 * Returns the first port of the block
+		 *
+		 */
+		public int getPort() {
+			return mPort;
+		}
+
+		public int getCount() {
+			return mCount;
+		}
+
+		/**
+		 *
+		 * Makes the ports available again, can be called more than once
+		 *
+		 */
+		public void release() {
+
+			synchronized (PortAllocator.this) {
+
+				if (mReleased) return;
+
+				mReleased = true;
+
+				try {
+					mLock.release();
+					mFile.close();
+				} catch (IOException e) {
+					// closing the file releases the lock anyway
+				}
+
+				mReserved.remove(mPort);
+			}
+		}
+
+		@Override
+		public String toString() {
+			return mCount == 1 ? Integer.toString(mPort) : mPort + "-" + (mPort + mCount - 1);
+		}
+	}
+
+	private static PortAllocator sDefault;
+
+	private final File mLockDirectory;
+
+	private final Set<Integer> mReserved = new HashSet<Integer>();
+
+	/**
+	 *
+	 * Returns the allocator shared by the whole process, its lock files are in
+	 * the temporary directory of the user.
+	 *
+	 */
+	public static synchronized PortAllocator getDefault() {
+
+		if (sDefault == null) {
+			sDefault = new PortAllocator(new File(System.getProperty("java.io.tmpdir"), "multiuiautomator-ports"));
+		}
+
+		return sDefault;
+	}
+
+	/**
+	 * @param lockDirectory directory of the lock files, the processes that
+	 *            must not share ports use the same one
+	 */
+	public PortAllocator(File lockDirectory) {
+		mLockDirectory = lockDirectory;
+	}
+
+	/**
+	 *
+	 * Reserves a block of ports
+	 *
+	 * @param min the first port that can be used
+	 * @param max the last port that can be used
+	 * @param count number of consecutive ports in the block, the blocks start
+	 *            at min + n * count
+	 * @return the reservation
+	 */
+	public synchronized Reservation reserve(int min, int max, int count) {
+
+		mLockDirectory.mkdirs();
+
+		for (int port = min; port + count - 1 <= max; port += count) {
+
+			if (mReserved.contains(port)) continue;
+
+			Reservation reservation = tryReserve(port, count);
+
+			if (reservation != null) {
+				mReserved.add(port);
+				return reservation;
+			}
+		}
+
+		throw new RuntimeException("Unable find free port between " + min + " and " + max);
+	}
+
+	private Reservation tryReserve(int port, int count) {
+
+		RandomAccessFile file = null;
+
+		try {
+
+			file = new RandomAccessFile(new File(mLockDirectory, "port-" + port + ".lock"), "rw");
+
+			FileLock lock = file.getChannel().tryLock();
+
+			if (lock != null) {
+
+				if (isFree(port, count)) {
+					return new Reservation(port, count, file, lock);
+				}
+
+				lock.release();
+			}
+
+		} catch (IOException e) {
+			// not usable, try the next block
+		} catch (OverlappingFileLockException e) {
+			// held by another allocator of this process
+		}
+
+		if (file != null) {
+			try {
+				file.close();
+			} catch (IOException e) {
+				// nothing to do
+			}
+		}
+
+		return null;
+	}
+
+	private static boolean isFree(int port, int count) {
+
+		for (int i = 0; i < count; i++) {
+
+			try {
+				ServerSocket socket = new ServerSocket();
+
+				try {
+					socket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port + i));
+				} finally {
+					socket.close();
+				}
+
+			} catch (IOException e) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "reserved " + mReserved + " in " + mLockDirectory;
+	}
+}
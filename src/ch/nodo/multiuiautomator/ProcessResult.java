@@ -0,0 +1,128 @@
+/*******************************************************************************
+ * Copyright (c) 2014, Lorenzo Keller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package ch.nodo.multiuiautomator;
+
+import java.util.Arrays;
+
+/**
+ *
+ * Outcome of a command executed by {@link ProcessRunner}
+ *
+ */
+public class ProcessResult {
+
+	private final String[] mCommand;
+	private final int mExitCode;
+	private final byte[] mStdout;
+	private final byte[] mStderr;
+	private final boolean mStdoutTruncated;
+	private final boolean mStderrTruncated;
+	private final long mDuration;
+
+	ProcessResult(String[] command, int exitCode, byte[] stdout, boolean stdoutTruncated, byte[] stderr,
+			boolean stderrTruncated, long duration) {
+		mCommand = command;
+		mExitCode = exitCode;
+		mStdout = stdout;
+		mStdoutTruncated = stdoutTruncated;
+		mStderr = stderr;
+		mStderrTruncated = stderrTruncated;
+		mDuration = duration;
+	}
+
+	public String[] getCommand() {
+		return mCommand.clone();
+	}
+
+	public int getExitCode() {
+		return mExitCode;
+	}
+
+	public boolean isSuccess() {
+		return mExitCode == 0;
+	}
+
+	/**
+	 *
+	 * Returns the standard output, limited to the capture size given to
+	 * {@link ProcessRunner}
+	 *
+	 */
+	public String getStdout() {
+		return new String(mStdout);
+	}
+
+	public byte[] getStdoutBytes() {
+		return mStdout.clone();
+	}
+
+	/**
+	 *
+	 * Returns true if part of the standard output was dropped because it
+	 * exceeded the capture size
+	 *
+	 */
+	public boolean isStdoutTruncated() {
+		return mStdoutTruncated;
+	}
+
+	/**
+	 *
+	 * Returns the standard error, limited to the capture size given to
+	 * {@link ProcessRunner}
+	 *
+	 */
+	public String getStderr() {
+		return new String(mStderr);
+	}
+
+	public byte[] getStderrBytes() {
+		return mStderr.clone();
+	}
+
+	public boolean isStderrTruncated() {
+		return mStderrTruncated;
+	}
+
+	/**
+	 *
+	 * Returns the time between the start of the process and the end of its
+	 * output, in milliseconds
+	 *
+	 */
+	public long getDurationMillis() {
+		return mDuration / 1000000;
+	}
+
+	/**
+	 *
+	 * Throws an exception describing the failure if the command did not exit
+	 * with 0
+	 *
+	 */
+	public ProcessResult checkSuccess() {
+
+		if (!isSuccess()) {
+			throw new RuntimeException("Command " + Arrays.toString(mCommand) + " returned " + mExitCode + ": "
+					+ getStderr().trim());
+		}
+
+		return this;
+	}
+
+	@Override
+	public String toString() {
+		return Arrays.toString(mCommand) + " exit=" + mExitCode + " stdout=" + mStdout.length + "B stderr="
+				+ mStderr.length + "B duration=" + getDurationMillis() + "ms";
+	}
+}
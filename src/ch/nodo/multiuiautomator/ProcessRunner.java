@@ -0,0 +1,209 @@
+/*******************************************************************************
+ * Copyright (c) 2014, Lorenzo Keller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package ch.nodo.multiuiautomator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ *
+ * Executes commands on the host in the background and collects their
+ * output.
+ *
+ * The output of the commands is read in blocks by a shared pool of threads
+ * and kept in memory up to a maximum size; what exceeds it is read and
+ * dropped so that the command never blocks on a full pipe.
+ *
+ */
+public class ProcessRunner {
+
+	/**
+	 * Default maximum number of bytes kept for each output stream
+	 */
+	public static final int DEFAULT_MAX_CAPTURE = 1024 * 1024;
+
+	private static final ExecutorService sExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+
+		private int mCount;
+
+		@Override
+		public synchronized Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "process-runner-" + (mCount++));
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private ProcessRunner() {
+	}
+
+	/**
+	 *
+	 * Starts a command and returns its result once it terminates
+	 *
+	 * @param command the command and its arguments
+	 * @return the future result, it never fails because of the exit code
+	 */
+	public static Future<ProcessResult> execute(String... command) {
+		return execute(DEFAULT_MAX_CAPTURE, command);
+	}
+
+	/**
+	 *
+	 * Starts a command and returns its result once it terminates
+	 *
+	 * @param maxCapture maximum number of bytes kept for each output stream
+	 * @param command the command and its arguments
+	 * @return the future result, it never fails because of the exit code
+	 */
+	public static Future<ProcessResult> execute(final int maxCapture, final String... command) {
+
+		final long start = System.nanoTime();
+
+		final Process process;
+
+		try {
+			process = new ProcessBuilder(command).start();
+			process.getOutputStream().close();
+		} catch (IOException e) {
+			throw new RuntimeException("Error executing command", e);
+		}
+
+		final Future<Capture> stderr = sExecutor.submit(new Capture(process.getErrorStream(), maxCapture));
+
+		return sExecutor.submit(new Callable<ProcessResult>() {
+			@Override
+			public ProcessResult call() throws Exception {
+
+				Capture stdout = new Capture(process.getInputStream(), maxCapture).call();
+
+				int exitCode = process.waitFor();
+
+				Capture error = stderr.get();
+
+				return new ProcessResult(command, exitCode, stdout.mData.toByteArray(), stdout.mTruncated,
+						error.mData.toByteArray(), error.mTruncated, System.nanoTime() - start);
+			}
+		});
+	}
+
+	/**
+	 *
+	 * Executes a command and waits for its result
+	 *
+	 * @param command the command and its arguments
+	 * @return the result, whatever the exit code
+	 */
+	public static ProcessResult run(String... command) {
+
+		try {
+			return execute(command).get();
+		} catch (InterruptedException e) {
+			throw new RuntimeException("Error executing command", e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Error executing command", e.getCause());
+		}
+	}
+
+	/**
+	 *
+	 * Executes a command, prints it with its output and fails if it does not
+	 * exit with 0.
+	 *
+	 * @param command the command and its arguments
+	 * @return the result
+	 */
+	public static ProcessResult checkCall(String... command) {
+
+		StringBuilder line = new StringBuilder();
+
+		for (String part : command) {
+			line.append(part).append(' ');
+		}
+
+		System.out.println(line);
+
+		ProcessResult result = run(command);
+
+		System.out.print(result.getStdout());
+		System.out.print(result.getStderr());
+
+		return result.checkSuccess();
+	}
+
+	/**
+	 *
+	 * Executes a command and returns its standard output, fails if it does not
+	 * exit with 0.
+	 *
+	 * @param command the command and its arguments
+	 * @return the standard output
+	 */
+	public static String checkOutput(String... command) {
+
+		ProcessResult result = run(command);
+
+		System.out.print(result.getStderr());
+
+		return result.checkSuccess().getStdout();
+	}
+
+	private static class Capture implements Callable<Capture> {
+
+		private final InputStream mIn;
+		private final int mMaxCapture;
+
+		private final ByteArrayOutputStream mData = new ByteArrayOutputStream();
+		private boolean mTruncated;
+
+		Capture(InputStream in, int maxCapture) {
+			mIn = in;
+			mMaxCapture = maxCapture;
+		}
+
+		@Override
+		public Capture call() throws IOException {
+
+			byte[] buffer = new byte[8192];
+			int len;
+
+			try {
+
+				while ((len = mIn.read(buffer)) != -1) {
+
+					int kept = Math.min(len, mMaxCapture - mData.size());
+
+					if (kept > 0) {
+						mData.write(buffer, 0, kept);
+					}
+
+					if (kept < len) {
+						mTruncated = true;
+					}
+				}
+
+			} finally {
+				mIn.close();
+			}
+
+			return this;
+		}
+	}
+}
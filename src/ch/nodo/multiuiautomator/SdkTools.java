@@ -14,18 +14,33 @@ package ch.nodo.multiuiautomator;
 
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.net.ConnectException;
 import java.net.HttpURLConnection;
-import java.net.InetAddress;
-import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
-import java.net.ServerSocket;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import com.android.uiautomator.core.UiDevice;
+import com.github.uiautomatorstub.AsyncAutomatorService;
 import com.github.uiautomatorstub.AutomatorService;
-import com.googlecode.jsonrpc4j.JsonRpcHttpClient;
 import com.googlecode.jsonrpc4j.ProxyUtil;
 
 /**
@@ -35,17 +50,32 @@ import com.googlecode.jsonrpc4j.ProxyUtil;
  */ 
 /*  
  *  Implementation details: We use the command line interface because it is more 
- *  stable than the internal Java API
+ *  stable than the internal Java API. The adb commands are sent directly to the
+ *  adb server when it is running (see AdbClient), the command line is used
+ *  otherwise.
  *
  */
 public class SdkTools {
 	
 	private static HashMap<String, EmulatorController> mActiveEmulators = new HashMap<String,EmulatorController>();	
 	
+	private static final int MIN_CONSOLE_PORT = 5554;
+	private static final int MAX_CONSOLE_PORT = 5682;
+	
 	private String mSdkPath;
 	private String mAndroidToolPath;
 	private String mEmulatorPath;
 	private String mAdbPath;
+	
+	private AdbClient mAdbClient = new AdbClient();
+	private boolean mAdbClientEnabled = true;
+	private DeviceTracker mDeviceTracker = new DeviceTracker(mAdbClient);
+	private AvdRegistry mAvdRegistry = new AvdRegistry(AvdRegistry.getDefaultDirectory());
+	private AvdCloner mAvdCloner = new AvdCloner(mAvdRegistry);
+	private String mGoldenAvd;
+	
+	private int[] mEmulatorPortRange;
+	private int[] mAutomatorPortRange;
 		
 	private static SdkTools mDefault;
 
@@ -67,6 +97,77 @@ public class SdkTools {
 		
 		mAdbPath = new File(platformToolsDir, "adb").toString(); 
 		
+		mEmulatorPortRange = checkEmulatorPortRange(parsePortRange(System.getProperty("EMULATOR_PORTS", "5556-5681")));
+		mAutomatorPortRange = parsePortRange(System.getProperty("AUTOMATOR_PORTS", "9008-9999"));
+	}
+	
+	/**
+	 * 
+	 * Sets the ports used for the emulator consoles and adb connections, each 
+	 * emulator uses two consecutive ports starting at an even port. An odd
+	 * first port is rounded up. The emulator only accepts console ports 
+	 * between 5554 and 5682, so the range must be within 5554-5683.
+	 * 
+	 * The default can be changed with the Java property EMULATOR_PORTS 
+	 * (for example 5556-5681).
+	 * 
+	 * @param min the first port
+	 * @param max the last port
+	 */
+	public void setEmulatorPortRange(int min, int max) {
+		mEmulatorPortRange = checkEmulatorPortRange(checkPortRange(min, max));
+	}
+	
+	/**
+	 * 
+	 * Sets the host ports forwarded to the UI automator servers, each emulator
+	 * uses two consecutive ports. Any range can be used, a larger range
+	 * allows more emulators at the same time.
+	 * 
+	 * The default can be changed with the Java property AUTOMATOR_PORTS 
+	 * (for example 20000-29999).
+	 * 
+	 * @param min the first port
+	 * @param max the last port
+	 */
+	public void setAutomatorPortRange(int min, int max) {
+		mAutomatorPortRange = checkPortRange(min, max);
+	}
+	
+	private static int[] parsePortRange(String range) {
+		
+		String[] parts = range.split("-");
+		
+		if (parts.length != 2) {
+			throw new IllegalArgumentException("Invalid port range " + range + ", expected min-max");
+		}
+		
+		return checkPortRange(Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1].trim()));
+	}
+	
+	/**
+	 * The console port must be even and the adb port is the next one, an odd
+	 * start would also make the blocks overlap the ones of other processes
+	 */
+	private static int[] checkEmulatorPortRange(int[] range) {
+		
+		int min = range[0] % 2 == 0 ? range[0] : range[0] + 1;
+		
+		if (min < MIN_CONSOLE_PORT || range[1] > MAX_CONSOLE_PORT + 1) {
+			throw new IllegalArgumentException("Invalid emulator port range " + range[0] + "-" + range[1] 
+					+ ", the ports must be between " + MIN_CONSOLE_PORT + " and " + (MAX_CONSOLE_PORT + 1));
+		}
+		
+		return checkPortRange(min, range[1]);
+	}
+	
+	private static int[] checkPortRange(int min, int max) {
+		
+		if (min < 1 || max > 65535 || max < min + 1) {
+			throw new IllegalArgumentException("Invalid port range " + min + "-" + max);
+		}
+		
+		return new int[] { min, max };
 	}
 	
 	/**
@@ -90,6 +191,138 @@ public class SdkTools {
 		return mDefault;
 	}
 
+	/**
+	 * 
+	 * Enables or disables talking directly to the adb server. When disabled, 
+	 * or when the server is not running, an adb process is started for each
+	 * command.
+	 * 
+	 * @param enabled
+	 */
+	public void setAdbClientEnabled(boolean enabled) {
+		mAdbClientEnabled = enabled;
+	}
+	
+	public boolean isAdbClientEnabled() {
+		return mAdbClientEnabled;
+	}
+	
+	public AdbClient getAdbClient() {
+		return mAdbClient;
+	}
+	
+	/**
+	 * 
+	 * Returns the tracker of the device states reported by the adb server,
+	 * shared by all the emulators.
+	 * 
+	 * @return
+	 */
+	public DeviceTracker getDeviceTracker() {
+		return mDeviceTracker;
+	}
+	
+	/**
+	 * 
+	 * Returns the list of the AVDs of the user
+	 * 
+	 * @return
+	 */
+	public AvdRegistry getAvdRegistry() {
+		return mAvdRegistry;
+	}
+	
+	/**
+	 * 
+	 * Makes {@link EmulatorController#create()} copy an existing AVD instead
+	 * of creating a new one with the android tool, see {@link AvdCloner}.
+	 * 
+	 * @param golden name of the AVD to copy, <code>null</code> to use the
+	 *               android tool again
+	 */
+	public void setGoldenAvd(String golden) {
+		mGoldenAvd = golden;
+	}
+	
+	public String getGoldenAvd() {
+		return mGoldenAvd;
+	}
+	
+	public AvdCloner getAvdCloner() {
+		return mAvdCloner;
+	}
+
+	/**
+	 * 
+	 * Creates and boots several emulators in parallel, see {@link DeviceGroup}
+	 * to change the concurrency or the timeouts.
+	 * 
+	 * @param avdNames names of the AVDs
+	 * @return the controllers, once all the emulators booted
+	 */
+	public Map<String, EmulatorController> startAll(Collection<String> avdNames) {
+		return new DeviceGroup(this, avdNames).start();
+	}
+
+	/**
+	 * 
+	 * Waits until several devices finished booting, in parallel.
+	 * 
+	 * @param controllers the emulators to wait for
+	 * @param timeout maximum time to wait for each of them
+	 * @param unit unit of the timeout
+	 * @return the time each device took to boot, in milliseconds
+	 */
+	public static Map<EmulatorController, Long> waitForBootCompleted(Collection<EmulatorController> controllers, 
+			final long timeout, final TimeUnit unit) {
+		
+		if (controllers.isEmpty()) {
+			return new LinkedHashMap<EmulatorController, Long>();
+		}
+		
+		ExecutorService executor = Executors.newFixedThreadPool(controllers.size());
+		
+		try {
+			
+			Map<EmulatorController, Future<Long>> futures = new LinkedHashMap<EmulatorController, Future<Long>>();
+			
+			for (final EmulatorController controller : controllers) {
+				futures.put(controller, executor.submit(new Callable<Long>() {
+					@Override
+					public Long call() {
+						long start = System.nanoTime();
+						controller.waitForBootCompleted(timeout, unit);
+						return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+					}
+				}));
+			}
+			
+			Map<EmulatorController, Long> times = new LinkedHashMap<EmulatorController, Long>();
+			StringBuilder failed = new StringBuilder();
+			Throwable cause = null;
+			
+			for (Map.Entry<EmulatorController, Future<Long>> entry : futures.entrySet()) {
+				try {
+					times.put(entry.getKey(), entry.getValue().get());
+				} catch (ExecutionException e) {
+					failed.append(' ').append(entry.getKey().getName());
+					cause = e.getCause();
+				}
+			}
+			
+			if (cause != null) {
+				throw new RuntimeException("Devices did not boot:" + failed + " (booted: " + times + ")", cause);
+			}
+			
+			return times;
+			
+		} catch (InterruptedException e) {
+			throw new RuntimeException("Interrupted while waiting for the devices to boot", e);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
 	/**
 	 * 
 	 * Creates an emulator controller that control the AVD with the desired 
@@ -117,41 +350,162 @@ public class SdkTools {
 	 *
 	 */
 	public class EmulatorController {
+		
+		/**
+		 * Port where the server on the device accepts framed connections
+		 */
+		public static final int FRAMED_DEVICE_PORT = 9009;
+		
+		private static final long BOOT_CHECK_MIN_DELAY = 100;
+		private static final long BOOT_CHECK_MAX_DELAY = 2000;
+		
+		/**
+		 * Idle connections to the automator server are closed before the 
+		 * server closes them on its own, after a few seconds
+		 */
+		private static final long AUTOMATOR_IDLE_TIMEOUT = 2000;
+		
+		private static final String EXIT_CODE_MARKER = "__EXIT_CODE_";
 	
 		private String mName;
 		private Process mProcess;
 		private int mPort;
 		private Process mAutomatorProcess;
 		private int mAutomatorPort;
+		private PortAllocator.Reservation mPorts;
+		private PortAllocator.Reservation mAutomatorPorts;
+		private StartupProfile mStartupProfile = StartupProfile.quickBoot();
+		private long mStartTime;
+		private ShellSession mShellSession;
+		private AutomatorConnectionPool mConnectionPool;
+		private PooledJsonRpcHttpClient mClient;
+		private AutomatorService mAutomatorService;
+		private int mServicePort;
+		private AutomatorCallQueue mCallQueue;
+		private WireEncoding mWireEncoding = WireEncoding.JSON;
+		private boolean mFramedTransport;
+		private boolean mUseFramedTransport;
+		private AsyncAutomatorService mAsyncAutomatorService;
+		private DeviceInfoCache mDeviceInfoCache;
+		private UiObjectHandleTracker mHandleTracker;
+		private DeploymentCache mDeploymentCache;
 		
 		private EmulatorController(String name) {
 			this.mName = name;
 		}
 		
 		/**
-		 * Starts the emulator.
 		 * 
-		 * This method doesn't wait for the emulator to be available.
+		 * Returns the name of the AVD controlled by this object
+		 * 
+		 * @return
+		 */
+		public String getName() {
+			return mName;
+		}
+		
+		@Override
+		public String toString() {
+			return mName;
+		}
+		
+		/**
+		 * 
+		 * Returns the serial number used by adb to identify this emulator
+		 * 
+		 * @return
+		 */
+		public String getSerial() {
+			return "emulator-" + mPort;
+		}
+		
+		/**
+		 * 
+		 * Sets how the emulator is started by the next calls to 
+		 * {@link #start()}, the default is {@link StartupProfile#quickBoot()}.
+		 * 
+		 * @param profile
+		 */
+		public void setStartupProfile(StartupProfile profile) {
+			mStartupProfile = profile;
+		}
+		
+		public StartupProfile getStartupProfile() {
+			return mStartupProfile;
+		}
+		
+		/**
+		 * Starts the emulator with its startup profile.
+		 * 
+		 * This method doesn't wait for the emulator to be available, see
+		 * {@link #waitForReady()}.
 		 * 
 		 */
 		public void start() {
 			
 			if (mProcess != null) return;
 			
-			mPort = findEmptyPort(5556, 5680);
+			if (mPorts == null) {
+				mPorts = PortAllocator.getDefault().reserve(mEmulatorPortRange[0], mEmulatorPortRange[1], 2);
+			}
+			
+			mPort = mPorts.getPort();
 			
 			try {
 				
-				String [] command = { mEmulatorPath, "-scale", "0.6" , "-no-boot-anim", "-noaudio", "-avd", mName , 
-													 "-port", Integer.toString(mPort)};
-				mProcess = Runtime.getRuntime().exec(command);
+				List<String> command = getStartCommand(mPort);
+				
+				mStartTime = System.nanoTime();
+				mProcess = Runtime.getRuntime().exec(command.toArray(new String[command.size()]));
+				LogPump.getDefault().register(mName, "emulator", mProcess);
 				
 			} catch (IOException e) {
+				mPorts.release();
+				mPorts = null;
 				throw new RuntimeException("Error while starting AVD", e);
 			} 
 			
 		}
 
+		/**
+		 * 
+		 * Returns the command line that starts the emulator with its startup
+		 * profile on the given console port
+		 * 
+		 * @param port
+		 * @return
+		 */
+		List<String> getStartCommand(int port) {
+			
+			List<String> command = new ArrayList<String>();
+			command.add(mEmulatorPath);
+			command.addAll(mStartupProfile.getArguments());
+			command.addAll(Arrays.asList("-avd", mName, "-port", Integer.toString(port)));
+			
+			return command;
+		}
+
+		/**
+		 * 
+		 * Returns true if the emulator was started by this controller and not
+		 * stopped since.
+		 * 
+		 * @return
+		 */
+		public boolean isRunning() {
+			return mProcess != null;
+		}
+		
+		/**
+		 * 
+		 * Returns true if the UI automator server was started and not stopped
+		 * since.
+		 * 
+		 * @return
+		 */
+		public boolean isUIAutomatorServerRunning() {
+			return mAutomatorProcess != null;
+		}
 		
 		/**
 		 * 
@@ -170,6 +524,18 @@ public class SdkTools {
 				mProcess.waitFor();
 				
 				mProcess = null;
+				
+				synchronized (this) {
+					if (mShellSession != null) {
+						mShellSession.close();
+					}
+					mShellSession = null;
+				}
+				
+				mPorts.release();
+				mPorts = null;
+				
+				getDeploymentCache().clear();
 			} catch (InterruptedException e) {
 				throw new RuntimeException("Error while stopping AVD", e);
 			}
@@ -186,7 +552,11 @@ public class SdkTools {
 			
 			String [] command = { mAndroidToolPath, "delete", "avd", "-n", mName };
 			
-			Subprocess.checkCall(command);
+			try {
+				ProcessRunner.checkCall(command);
+			} finally {
+				mAvdRegistry.update(mName);
+			}
 			
 		}
 			
@@ -199,10 +569,19 @@ public class SdkTools {
 
 			if ( isCreated() ) return;
 			
+			if (mGoldenAvd != null) {
+				mAvdCloner.clone(mGoldenAvd, mName);
+				return;
+			}
+			
 			String [] command = { mAndroidToolPath, "create", "avd", "-n", mName, "-t", "android-19", 
 													"--abi", "x86", "-d", "5.1in WVGA" };
 			
-			Subprocess.checkCall(command);
+			try {
+				ProcessRunner.checkCall(command);
+			} finally {
+				mAvdRegistry.update(mName);
+			}
 		}
 
 		/**
@@ -213,9 +592,19 @@ public class SdkTools {
 		 */
 		public boolean isOnline() {
 		
+			if (mAdbClientEnabled) {
+				try {
+					return "device".equals(mAdbClient.getDevices().get(getSerial()));
+				} catch (ConnectException e) {
+					// the adb server is not running, the command line starts it
+				} catch (IOException e) {
+					throw new RuntimeException("Error while listing devices", e);
+				}
+			}
+			
 			String [] command = { mAdbPath , "devices"};
 			
-			String output = Subprocess.checkOutput(command);
+			String output = ProcessRunner.checkOutput(command);
 			
 			String[] avds = output.split("\n");
 			
@@ -231,60 +620,171 @@ public class SdkTools {
 		
 		/**
 		 * 
-		 * Wait until adb on the device is ready to receive commands
+		 * Wait until adb on the device is ready to receive commands, at most
+		 * the boot timeout of the startup profile
 		 * 
 		 */
 		public void waitForOnline() {
+			
+			long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(mStartupProfile.getBootTimeout());
+			
 			try {
+				
+				// checking once also starts the adb server if needed
+				if (isOnline()) return;
+				
+				if (mAdbClientEnabled) {
+					waitForTrackedState("device", deadline);
+					return;
+				}
+				
 				while (!isOnline()) {
+					
+					if (System.nanoTime() - deadline >= 0) {
+						throw new TimeoutException();
+					}
+					
 					Thread.sleep(1000);
 				}
+			} catch (TimeoutException ex) {
+				throw new RuntimeException("Timeout while waiting for " + mName + " to become online");
 			} catch (InterruptedException ex ) {
 				throw new RuntimeException("Interrupted while waiting for the device from becoming online");
-			} 
+			} catch (ExecutionException ex) {
+				throw new RuntimeException("Error while waiting for the device to become online", ex.getCause());
+			}
+		}
+		
+		/**
+		 * Waits for the device tracker to report a state, the waiter is
+		 * removed from the tracker if it times out
+		 */
+		private void waitForTrackedState(String state, long deadline) 
+				throws InterruptedException, ExecutionException, TimeoutException {
+			
+			Future<String> future = mDeviceTracker.waitForState(getSerial(), state);
+			
+			try {
+				future.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+			} finally {
+				future.cancel(false);
+			}
 		}
 
 		/**
 		 * 
-		 * Check if the device AVD exists
+		 * Checks if the device finished booting: the boot properties are set
+		 * and the package manager is available.
 		 * 
 		 * @return
 		 */
-		public boolean isCreated() {
-			
-			String [] command = { mAndroidToolPath, "list", "avd", "-c"};
+		public boolean isBootCompleted() {
 			
-			String output = Subprocess.checkOutput(command);
+			String output;
 			
-			String[] avds = output.split("\n");
-			
-			for ( String avd : avds) {
-				if ( avd.equals(mName)) return true;
+			try {
+				output = executeCommandForOutput("getprop sys.boot_completed; getprop dev.bootcomplete; service check package");
+			} catch (RuntimeException e) {
+				// the device is not reachable yet
+				return false;
 			}
 			
-			return false;
+			String[] lines = output.split("\r?\n");
 			
+			return lines.length >= 3 && lines[0].trim().equals("1") && lines[1].trim().equals("1") 
+					&& lines[2].contains(": found");
 		}
-
-		private int findEmptyPort(int min, int max) {
+		
+		/**
+		 * 
+		 * Waits until the device finished booting. The device is checked
+		 * again after increasing delays.
+		 * 
+		 * @param timeout maximum time to wait
+		 * @param unit unit of the timeout
+		 */
+		public void waitForBootCompleted(long timeout, TimeUnit unit) {
+			waitForBootCompleted(unit.toNanos(timeout), BOOT_CHECK_MIN_DELAY);
+		}
+		
+		private void waitForBootCompleted(long timeoutNanos, long firstDelay) {
+			
+			long deadline = System.nanoTime() + timeoutNanos;
+			long delay = firstDelay;
 			
-			for ( int port = min ; port <= max; port += 2) {
+			try {
 				
-				try {
-					ServerSocket socket = new ServerSocket();
+				if (mAdbClientEnabled && !isOnline()) {
+					waitForTrackedState("device", deadline);
+				}
+				
+				while (!isBootCompleted()) {
 					
-					socket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+					long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
 					
-					socket.close();
+					if (remaining <= 0) {
+						throw new RuntimeException("Timeout while waiting for " + mName + " to boot");
+					}
 					
-					return port;
-				} catch (IOException e) {}
+					Thread.sleep(Math.min(delay, remaining));
+					
+					delay = Math.min(delay * 2, BOOT_CHECK_MAX_DELAY);
+				}
 				
+			} catch (TimeoutException ex) {
+				throw new RuntimeException("Timeout while waiting for " + mName + " to become online");
+			} catch (InterruptedException ex) {
+				throw new RuntimeException("Interrupted while waiting for " + mName + " to boot");
+			} catch (ExecutionException ex) {
+				throw new RuntimeException("Error while waiting for " + mName + " to boot", ex.getCause());
 			}
-			
-			throw new RuntimeException("Unable find free port");
 		}
 		
+		/**
+		 * 
+		 * Waits until the device started by {@link #start()} is ready, with the
+		 * timeout of its startup profile, and records the startup time in the
+		 * {@link StartupReport}.
+		 * 
+		 * @return the time since the emulator was started, in milliseconds
+		 */
+		public long waitForReady() {
+			return waitForReady(mStartupProfile.getBootTimeout(), TimeUnit.MILLISECONDS);
+		}
+		
+		/**
+		 * 
+		 * Waits until the device started by {@link #start()} is ready and 
+		 * records the startup time in the {@link StartupReport}.
+		 * 
+		 * @param timeout maximum time to wait
+		 * @param unit unit of the timeout
+		 * @return the time since the emulator was started, in milliseconds
+		 */
+		public long waitForReady(long timeout, TimeUnit unit) {
+			
+			StartupProfile profile = mStartupProfile;
+			long started = mStartTime;
+			
+			waitForBootCompleted(unit.toNanos(timeout), profile.getFirstCheckDelay());
+			
+			long elapsed = System.nanoTime() - started;
+			
+			StartupReport.getDefault().record(profile, elapsed);
+			
+			return TimeUnit.NANOSECONDS.toMillis(elapsed);
+		}
+
+		/**
+		 * 
+		 * Check if the device AVD exists
+		 * 
+		 * @return
+		 */
+		public boolean isCreated() {
+			return mAvdRegistry.contains(mName);
+		}
+
 		/**
 		 * 
 		 * Install the specified APK to the device
@@ -293,9 +793,25 @@ public class SdkTools {
 		 */
 		public void installApplication(String apk) {
 
+			if (mAdbClientEnabled) {
+				try {
+					String remote = "/data/local/tmp/" + new File(apk).getName();
+					mAdbClient.push(getSerial(), apk, remote);
+					String output = mAdbClient.shell(getSerial(), "pm install " + remote + "; rm " + remote);
+					if (!output.contains("Success")) {
+						throw new RuntimeException("Error while installing " + apk + ": " + output.trim());
+					}
+					return;
+				} catch (ConnectException e) {
+					// the adb server is not running, the command line starts it
+				} catch (IOException e) {
+					throw new RuntimeException("Error while installing " + apk, e);
+				}
+			}
+			
 			String [] command = { mAdbPath, "-s",  "emulator-" + mPort, "install", apk };
 
-			Subprocess.checkCall(command);
+			ProcessRunner.checkCall(command);
 
 			
 		}
@@ -308,9 +824,23 @@ public class SdkTools {
 		 */
 		public void uninstallApplication(String packageName) {
 
+			if (mAdbClientEnabled) {
+				try {
+					String output = mAdbClient.shell(getSerial(), "pm uninstall " + packageName);
+					if (!output.contains("Success")) {
+						throw new RuntimeException("Error while uninstalling " + packageName + ": " + output.trim());
+					}
+					return;
+				} catch (ConnectException e) {
+					// the adb server is not running, the command line starts it
+				} catch (IOException e) {
+					throw new RuntimeException("Error while uninstalling " + packageName, e);
+				}
+			}
+			
 			String [] command = { mAdbPath, "-s",  "emulator-" + mPort, "uninstall", packageName};
 
-			Subprocess.checkCall(command);
+			ProcessRunner.checkCall(command);
 
 			
 		}
@@ -324,9 +854,20 @@ public class SdkTools {
 		 */
 		public void pushFile(String origin, String destination) {
 			
+			if (mAdbClientEnabled) {
+				try {
+					mAdbClient.push(getSerial(), origin, destination);
+					return;
+				} catch (ConnectException e) {
+					// the adb server is not running, the command line starts it
+				} catch (IOException e) {
+					throw new RuntimeException("Error while pushing " + origin, e);
+				}
+			}
+			
 			String [] command = { mAdbPath, "-s",  "emulator-" + mPort, "push", origin, destination };
 			
-			Subprocess.checkCall(command);
+			ProcessRunner.checkCall(command);
 			
 		}
 		
@@ -340,26 +881,203 @@ public class SdkTools {
 		 */
 		public void pullFile(String origin, String destination) {
 			
+			if (mAdbClientEnabled) {
+				try {
+					mAdbClient.pull(getSerial(), origin, destination);
+					return;
+				} catch (ConnectException e) {
+					// the adb server is not running, the command line starts it
+				} catch (IOException e) {
+					throw new RuntimeException("Error while pulling " + origin, e);
+				}
+			}
+			
 			String [] command = { mAdbPath, "-s",  "emulator-" + mPort, "pull", origin, destination };
 			
-			Subprocess.checkCall(command);
+			ProcessRunner.checkCall(command);
 			
 		}
 
 		/**
 		 * 
-		 * Executes a command on the device
+		 * Reads a file from the device into memory
 		 * 
-		 * @param shellCommand
+		 * @param origin the source path (on the device)
+		 * @return a buffer with the content of the file between its position and
+		 *         its limit
+		 */
+		public ByteBuffer pullFile(String origin) {
+			
+			if (mAdbClientEnabled) {
+				try {
+					return mAdbClient.pull(getSerial(), origin);
+				} catch (ConnectException e) {
+					// the adb server is not running, the command line starts it
+				} catch (IOException e) {
+					throw new RuntimeException("Error while pulling " + origin, e);
+				}
+			}
+			
+			try {
+				
+				File file = File.createTempFile("pull", null);
+				
+				try {
+					
+					pullFile(origin, file.getPath());
+					
+					FileChannel channel = new FileInputStream(file).getChannel();
+					
+					try {
+						ByteBuffer data = ByteBuffer.allocate((int) channel.size());
+						while (data.hasRemaining() && channel.read(data) != -1);
+						data.flip();
+						return data;
+					} finally {
+						channel.close();
+					}
+					
+				} finally {
+					file.delete();
+				}
+				
+			} catch (IOException e) {
+				throw new RuntimeException("Error while pulling " + origin, e);
+			}
+		}
+
+		/**
+		 * 
+		 * Executes a command on the device, fails if it does not exit with 0
+		 * 
+		 * @param shellCommand
 		 */
 		public void executeCommand(String shellCommand) {
 			
-			String [] command = { mAdbPath, "-s",  "emulator-" + mPort, "shell", shellCommand};
+			if (mAdbClientEnabled) {
+				
+				ProcessResult result = null;
+				
+				try {
+					result = getShellSession().execute(shellCommand);
+				} catch (ConnectException e) {
+					// the adb server is not running, the command line starts it
+				} catch (IOException e) {
+					throw new RuntimeException("Error while executing command", e);
+				}
+				
+				if (result != null) {
+					System.out.print(result.getStdout());
+					checkExitCode(shellCommand, result.getExitCode(), result.getStdout());
+					return;
+				}
+			}
+			
+			String trimmed = shellCommand.trim();
+			
+			while (trimmed.endsWith(";")) {
+				trimmed = trimmed.substring(0, trimmed.length() - 1).trim();
+			}
 			
-			Subprocess.checkCall(command);
+			// adb shell exits with 0 whatever the command returns, the exit 
+			// code is printed after the output instead
+			String [] command = { mAdbPath, "-s",  "emulator-" + mPort, "shell", 
+					trimmed + (trimmed.endsWith("&") ? " " : "; ") + "echo " + EXIT_CODE_MARKER + "$?"};
+			
+			String output = ProcessRunner.checkCall(command).getStdout();
+			
+			int index = output.lastIndexOf(EXIT_CODE_MARKER);
+			
+			if (index < 0) {
+				throw new RuntimeException("No exit code for command " + shellCommand + ": " + output.trim());
+			}
 			
+			try {
+				checkExitCode(shellCommand, Integer.parseInt(output.substring(index + EXIT_CODE_MARKER.length()).trim()),
+						output.substring(0, index));
+			} catch (NumberFormatException e) {
+				throw new RuntimeException("Invalid exit code for command " + shellCommand + ": " + output.trim(), e);
+			}
+		}
+		
+		private void checkExitCode(String shellCommand, int code, String output) {
+			if (code != 0) {
+				throw new RuntimeException("Command " + shellCommand + " returned " + code + ": " + output.trim());
+			}
+		}
+
+
+		/**
+		 * 
+		 * Executes a command on the device and returns its output
+		 * 
+		 * @param shellCommand
+		 * @return
+		 */
+		public String executeCommandForOutput(String shellCommand) {
+			
+			if (mAdbClientEnabled) {
+				try {
+					return getShellSession().execute(shellCommand).getStdout();
+				} catch (ConnectException e) {
+					// the adb server is not running, the command line starts it
+				} catch (IOException e) {
+					throw new RuntimeException("Error while executing command", e);
+				}
+			}
+			
+			String [] command = { mAdbPath, "-s",  "emulator-" + mPort, "shell", shellCommand};
+			
+			return ProcessRunner.checkOutput(command);
 		}
 
+		/**
+		 * 
+		 * Executes a command on the device and returns its output and its exit
+		 * code. The commands run one after the other in the same shell, see
+		 * {@link ShellSession}.
+		 * 
+		 * @param shellCommand
+		 * @return
+		 */
+		public ProcessResult executeShellCommand(String shellCommand) {
+			try {
+				return getShellSession().execute(shellCommand);
+			} catch (IOException e) {
+				throw new RuntimeException("Error while executing command", e);
+			}
+		}
+		
+		/**
+		 * 
+		 * Returns the shell kept open on the device to run commands
+		 * 
+		 * @return
+		 */
+		public synchronized ShellSession getShellSession() {
+			
+			if (mShellSession == null) {
+				mShellSession = new ShellSession(mAdbClient, getSerial());
+			}
+			
+			return mShellSession;
+		}
+		
+		/**
+		 * 
+		 * Returns the cache used to copy files and applications to this device
+		 * only when they changed.
+		 * 
+		 * @return
+		 */
+		public synchronized DeploymentCache getDeploymentCache() {
+			
+			if (mDeploymentCache == null) {
+				mDeploymentCache = new DeploymentCache(this);
+			}
+			
+			return mDeploymentCache;
+		}
 		
 		/**
 		 * Forwards a port from the host to the device
@@ -368,9 +1086,20 @@ public class SdkTools {
 		 * @param remote the port on the device (uses adb forward syntax)
 		 */
 		public void forwardPort(String local, String remote) {
+			if (mAdbClientEnabled) {
+				try {
+					mAdbClient.forward(getSerial(), local, remote);
+					return;
+				} catch (ConnectException e) {
+					// the adb server is not running, the command line starts it
+				} catch (IOException e) {
+					throw new RuntimeException("Error while forwarding port", e);
+				}
+			}
+			
 			String [] command = { mAdbPath, "-s",  "emulator-" + mPort, "forward", local, remote};
 			
-			Subprocess.checkCall(command);		
+			ProcessRunner.checkCall(command);		
 		}
 		
 		/**
@@ -381,9 +1110,20 @@ public class SdkTools {
 		 */
 		public void unforwardPort(String local) {
 			
+			if (mAdbClientEnabled) {
+				try {
+					mAdbClient.removeForward(getSerial(), local);
+					return;
+				} catch (ConnectException e) {
+					// the adb server is not running, the command line starts it
+				} catch (IOException e) {
+					throw new RuntimeException("Error while removing port forwarding", e);
+				}
+			}
+			
 			String [] command = { mAdbPath, "-s",  "emulator-" + mPort, "forward", "--remove", local};
 			
-			Subprocess.checkCall(command);	
+			ProcessRunner.checkCall(command);	
 		}
 
 		
@@ -396,20 +1136,230 @@ public class SdkTools {
 		 * @return
 		 */
 		public UiDevice getUiDevice() {
+			return new UiDevice(this, getAutomatorService());
+		}
+
+		/**
+		 * 
+		 * Returns the connection pool used to talk to the UI automator server,
+		 * mostly useful to inspect its statistics.
+		 * 
+		 * @return the pool or <code>null</code> if the server is not running
+		 */
+		public synchronized AutomatorConnectionPool getConnectionPool() {
+			return mConnectionPool;
+		}
+
+		private synchronized AutomatorService getAutomatorService() {
+
+			int port = mUseFramedTransport ? mAutomatorPort + 1 : mAutomatorPort;
+			
+			if (mAutomatorService != null && mServicePort != port) {
+				// created before the server was started on its current port
+				closeAutomatorClient();
+			}
+			
+			if (mAutomatorService == null) {
+				
+				mServicePort = port;
+				
+				mConnectionPool = new AutomatorConnectionPool("127.0.0.1", port, 4, AUTOMATOR_IDLE_TIMEOUT);
+
+				try {
+					URL url = new URL("http://127.0.0.1:" +  mAutomatorPort + "/jsonrpc/0");
+					
+					if (mUseFramedTransport) {
+						mClient = new FramedJsonRpcClient(url, mConnectionPool);
+					} else {
+						mClient = new PooledJsonRpcHttpClient(url, mConnectionPool);
+					}
+				} catch (MalformedURLException e) {
+					e.printStackTrace();
+				}
+				
+				mClient.setPreferredEncoding(mWireEncoding);
+
+				mAutomatorService = ProxyUtil.createClientProxy(
+						AutomatorService.class.getClassLoader(),
+						AutomatorService.class, mClient);
+				
+				mHandleTracker = new UiObjectHandleTracker(mName, mClient, mAutomatorService, 5000);
+			}
+
+			return mAutomatorService;
+		}
+
+		/**
+		 * 
+		 * Returns the last lines printed by the emulator and the UI automator
+		 * server, useful to report failures.
+		 * 
+		 * @return
+		 */
+		public List<String> getRecentLog() {
+			return LogPump.getDefault().getRecentLines(mName);
+		}
+
+		/**
+		 * 
+		 * Returns the host side cache of the device information, shared by
+		 * all the UI devices returned by {@link #getUiDevice()}.
+		 * 
+		 * @return
+		 */
+		public synchronized DeviceInfoCache getDeviceInfoCache() {
+			
+			AutomatorService service = getAutomatorService();
+			
+			if (mDeviceInfoCache == null) {
+				mDeviceInfoCache = new DeviceInfoCache(service);
+			}
+			
+			return mDeviceInfoCache;
+		}
+
+		/**
+		 * 
+		 * Returns the tracker of the object ids created on the UI automator
+		 * server, mostly useful to inspect how many are in use.
+		 * 
+		 * @return
+		 */
+		public synchronized UiObjectHandleTracker getHandleTracker() {
+			getAutomatorService();
+			return mHandleTracker;
+		}
+
+		/**
+		 * 
+		 * Returns the duration of the recent calls to the UI automator server
+		 * 
+		 * @return
+		 */
+		public synchronized LatencyStats getLatencyStats() {
+			getAutomatorService();
+			return mClient.getLatencyStats();
+		}
+		
+		/**
+		 * 
+		 * Enables the framed TCP transport, which avoids the HTTP overhead of 
+		 * each call. The transport is only used if the server running on the 
+		 * device answers on port {@value #FRAMED_DEVICE_PORT}, otherwise HTTP 
+		 * is used. Takes effect the next time the server is started.
+		 * 
+		 * @param enabled
+		 */
+		public void setFramedTransport(boolean enabled) {
+			mFramedTransport = enabled;
+		}
+		
+		/**
+		 * 
+		 * Returns true if calls are sent over the framed TCP transport
+		 * 
+		 * @return
+		 */
+		public boolean isUsingFramedTransport() {
+			return mUseFramedTransport;
+		}
+		
+		/**
+		 * 
+		 * Selects the encoding of the payloads exchanged with the UI automator 
+		 * server. The encoding is negotiated when the first call is made and 
+		 * plain JSON is used if the server does not support it.
+		 * 
+		 * @param encoding
+		 */
+		public synchronized void setWireEncoding(WireEncoding encoding) {
+			mWireEncoding = encoding;
 			
-			JsonRpcHttpClient client = null;
+			if (mClient != null) {
+				mClient.setPreferredEncoding(encoding);
+			}
+		}
+		
+		/**
+		 * 
+		 * Returns the encoding negotiated with the UI automator server
+		 * 
+		 * @return
+		 */
+		public synchronized WireEncoding getWireEncoding() {
 			try {
-				client = new JsonRpcHttpClient(new URL(
-						"http://127.0.0.1:" +  mAutomatorPort + "/jsonrpc/0"));
-			} catch (MalformedURLException e) {
-				e.printStackTrace();
+				getAutomatorService();
+				return mClient.getEncoding();
+			} catch (IOException e) {
+				throw new RuntimeException("Error while negotiating encoding", e);
 			}
+		}
+		
+		/**
+		 * 
+		 * Returns the queue used to send calls to the UI automator server in 
+		 * the background. 
+		 * 
+		 * @return
+		 */
+		public synchronized AutomatorCallQueue getCallQueue() {
 			
-			AutomatorService service = ProxyUtil.createClientProxy(
-					AutomatorService.class.getClassLoader(),
-					AutomatorService.class, client);
+			if (mCallQueue == null) {
+				mCallQueue = new AutomatorCallQueue(mName, 4);
+			}
 			
-			return new UiDevice(this, service);
+			return mCallQueue;
+		}
+		
+		/**
+		 * 
+		 * Returns a non blocking version of the service used by 
+		 * {@link #getUiDevice()}.
+		 * 
+		 * @return
+		 */
+		public synchronized AsyncAutomatorService getAsyncAutomatorService() {
+			
+			AutomatorService service = getAutomatorService();
+			
+			if (mAsyncAutomatorService == null) {
+				mAsyncAutomatorService = getCallQueue().createAsyncService(service);
+			}
+			
+			return mAsyncAutomatorService;
+		}
+
+		/**
+		 * 
+		 * Runs the calls recorded by the block as a single JSON-RPC batch
+		 * request.
+		 * 
+		 * @param block records the calls to send
+		 * @return the result of each recorded call, in order
+		 */
+		public List<AutomatorBatch.Result> batch(AutomatorBatch.Block block) {
+			
+			getAutomatorService();
+			
+			AutomatorBatch batch = new AutomatorBatch(mClient);
+			
+			try {
+				block.run(batch.getService());
+			} catch (Exception e) {
+				throw new RuntimeException("Error while recording batch", e);
+			}
+			
+			List<AutomatorBatch.Result> results = batch.execute();
+			
+			// the orientation setters of UiDevice are bypassed
+			for (AutomatorBatch.Result result : results) {
+				if (DeviceInfoCache.changesRotation(result.getMethod())) {
+					getDeviceInfoCache().invalidateDisplay();
+					break;
+				}
+			}
+			
+			return results;
 		}
 		
 		/**
@@ -423,42 +1373,97 @@ public class SdkTools {
 				return;
 			}
 			
-			mAutomatorPort = findEmptyPort(9008,9030);
-			forwardPort("tcp:" + mAutomatorPort, "tcp:9008");		
+			if (mAutomatorPorts == null) {
+				mAutomatorPorts = PortAllocator.getDefault().reserve(mAutomatorPortRange[0], mAutomatorPortRange[1], 2);
+			}
 			
-			pushFile("android/bundle.jar", "/data/local/tmp");
-			pushFile("android/uiautomator-stub.jar", "/data/local/tmp");		
+			mAutomatorPort = mAutomatorPorts.getPort();
 			
-			executeCommand("mount -t tmpfs none /sdcard");
+			boolean forwarded = false;
 			
 			try {
-									
+				
+				forwardPort("tcp:" + mAutomatorPort, "tcp:9008");		
+				forwarded = true;
+				
+				getDeploymentCache().push("android/bundle.jar", "/data/local/tmp/bundle.jar");
+				getDeploymentCache().push("android/uiautomator-stub.jar", "/data/local/tmp/uiautomator-stub.jar");		
+				
+				// fails when already mounted by a previous start, which is fine
+				executeCommandForOutput("mount -t tmpfs none /sdcard");
 				
 				String [] command = { mAdbPath, "-s","emulator-" + mPort, "shell", 
 						"uiautomator runtest uiautomator-stub.jar bundle.jar -c com.github.uiautomatorstub.Stub"};
 				
-				mAutomatorProcess = Runtime.getRuntime().exec(command);			
+				try {
+					mAutomatorProcess = Runtime.getRuntime().exec(command);
+				} catch (IOException e) {
+					throw new RuntimeException("Error while starting AVD", e);
+				}
 				
-				while (true) {
-					try{
-						URL u = new URL("http://127.0.0.1:" + mAutomatorPort);
-						HttpURLConnection connection = (HttpURLConnection) u.openConnection();					
-						connection.connect();
-						if ( connection.getResponseCode() != -1) {
-							break;
-						}
-						
-						Thread.sleep(1000);
-						
-					} catch (Exception e) {}
+			} catch (RuntimeException e) {
+				
+				// undo the setup so that a retry does not leak the forward and the ports
+				if (forwarded) {
+					try {
+						unforwardPort("tcp:" + mAutomatorPort);
+					} catch (RuntimeException unforwardError) {
+						unforwardError.printStackTrace();
+					}
 				}
 				
-			} catch (IOException e) {
-				throw new RuntimeException("Error while starting AVD", e);
-			} 
+				releaseAutomatorPorts();
+				
+				throw e;
+			}
+			
+			LogPump.getDefault().register(mName, "automator", mAutomatorProcess);
+			
+			while (true) {
+				try{
+					URL u = new URL("http://127.0.0.1:" + mAutomatorPort);
+					HttpURLConnection connection = (HttpURLConnection) u.openConnection();
+					connection.connect();
+					if ( connection.getResponseCode() != -1) {
+						break;
+					}
+					
+					Thread.sleep(1000);
+					
+				} catch (Exception e) {}
+			}
+			
+			if (mFramedTransport) {
+				mUseFramedTransport = probeFramedTransport();
+			}
 						
 		}
 		
+		private boolean probeFramedTransport() {
+			
+			forwardPort("tcp:" + (mAutomatorPort + 1), "tcp:" + FRAMED_DEVICE_PORT);
+			
+			AutomatorConnectionPool pool = new AutomatorConnectionPool("127.0.0.1", mAutomatorPort + 1, 1, 0);
+			pool.setReadTimeout(2000);
+			
+			try {
+				FramedJsonRpcClient client = new FramedJsonRpcClient(
+						new URL("http://127.0.0.1:" +  mAutomatorPort + "/jsonrpc/0"), pool);
+				
+				if (client.probe()) {
+					return true;
+				}
+			} catch (MalformedURLException e) {
+				e.printStackTrace();
+			} finally {
+				pool.close();
+			}
+			
+			unforwardPort("tcp:" + (mAutomatorPort + 1));
+			
+			return false;
+		}
+		
 		/**
 		 * 
 		 * Captures the UI structure on from the device.
@@ -474,6 +1479,45 @@ public class SdkTools {
 			executeCommand("rm /data/local/tmp/ui.xml");			
 		}
 		
+		/**
+		 * 
+		 * Captures the UI structure from the device without storing it on the 
+		 * host.
+		 * 
+		 * Make sure you called  {@link #stopUIAutomatorServer()} before calling
+		 * this method.
+		 * 
+		 * @return the XML dump
+		 */
+		public String captureUIStructure() {
+			executeCommand("uiautomator dump /data/local/tmp/ui.xml");
+			try {
+				return Charset.forName("UTF-8").decode(pullFile("/data/local/tmp/ui.xml")).toString();
+			} finally {
+				executeCommand("rm -f /data/local/tmp/ui.xml");
+			}
+		}
+		
+		/**
+		 * 
+		 * Captures the UI structure through the running UI automator server,
+		 * to be used instead of {@link #captureUIStructure(String)} while the
+		 * server is running.
+		 * 
+		 * @param file a file on the host where to store the dump
+		 */
+		public void dumpUIStructure(String file) {
+			
+			String path = getAutomatorService().dumpWindowHierarchy(false, "ui.xml");
+			
+			if (path == null) {
+				throw new RuntimeException("The UI automator server could not dump the UI structure");
+			}
+			
+			pullFile(path, file);
+			executeCommand("rm " + path);
+		}
+		
 		/**
 		 * 
 		 * Captures a screenshot from the device.
@@ -489,6 +1533,24 @@ public class SdkTools {
 			executeCommand("rm /data/local/tmp/screen.png");			
 		}
 		
+		/**
+		 * 
+		 * Captures a screenshot from the device without storing it on the host.
+		 * 
+		 * Make sure you called  {@link #stopUIAutomatorServer()} before calling
+		 * this method.
+		 * 
+		 * @return the PNG image
+		 */
+		public ByteBuffer captureScreenShot() {
+			executeCommand("screencap -p /data/local/tmp/screen.png");
+			try {
+				return pullFile("/data/local/tmp/screen.png");
+			} finally {
+				executeCommand("rm -f /data/local/tmp/screen.png");
+			}
+		}
+		
 		/**
 		 * 
 		 * Stops the UI automator service on the server
@@ -498,22 +1560,65 @@ public class SdkTools {
 		
 			try {
 				
-				if (mAutomatorProcess == null) return;
+				closeAutomatorClient();
+				
+				if (mAutomatorProcess == null) {
+					releaseAutomatorPorts();
+					return;
+				}
 			
 				unforwardPort("tcp:" + mAutomatorPort);
 				
+				if (mUseFramedTransport) {
+					unforwardPort("tcp:" + (mAutomatorPort + 1));
+					mUseFramedTransport = false;
+				}
+				
 				mAutomatorProcess.destroy();
 				
 				mAutomatorProcess.waitFor();
 				
 				mAutomatorProcess = null;
 				
+				releaseAutomatorPorts();
+				
 			} catch (InterruptedException e) {
 				throw new RuntimeException("Error while stopping automator process", e);
 			}
 			
 		}
 		
+		/**
+		 * Forgets the client of the server and everything built on it
+		 */
+		private synchronized void closeAutomatorClient() {
+			
+			if (mConnectionPool != null) {
+				mConnectionPool.close();
+			}
+			mConnectionPool = null;
+			mClient = null;
+			mAutomatorService = null;
+			if (mCallQueue != null) {
+				mCallQueue.shutdown();
+			}
+			mCallQueue = null;
+			mAsyncAutomatorService = null;
+			mDeviceInfoCache = null;
+			if (mHandleTracker != null) {
+				mHandleTracker.close();
+			}
+			mHandleTracker = null;
+		}
+		
+		private void releaseAutomatorPorts() {
+			
+			if (mAutomatorPorts != null) {
+				mAutomatorPorts.release();
+				mAutomatorPorts = null;
+			}
+		}
+		
 	}
 	
 }
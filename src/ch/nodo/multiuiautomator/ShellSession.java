@@ -0,0 +1,230 @@
+/*******************************************************************************
+ * Copyright (c) 2014, Lorenzo Keller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package ch.nodo.multiuiautomator;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.Charset;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ * Runs shell commands on a device, one after the other, in a single
+ * interactive shell kept open between them.
+ *
+ * Each command is written on one line between two <code>echo</code>
+ * commands printing markers unique to the command, the second one with the
+ * exit code. The output is what the shell prints between the markers, the
+ * echo of the input and the prompts are ignored.
+ *
+ * The shell runs in a terminal: the standard error is mixed with the
+ * standard output, the line endings are converted and the commands must not
+ * read their standard input. The state of the shell (current directory,
+ * variables) is kept from one command to the next.
+ *
+ */
+public class ShellSession {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final long DEFAULT_TIMEOUT = TimeUnit.MINUTES.toMillis(5);
+
+	private final AdbClient mClient;
+	private final String mSerial;
+
+	private final String mToken = Long.toHexString(new Random().nextLong() & Long.MAX_VALUE);
+	private long mNextId;
+
+	private Socket mSocket;
+	private InputStream mIn;
+	private OutputStream mOut;
+
+	public ShellSession(AdbClient client, String serial) {
+		mClient = client;
+		mSerial = serial;
+	}
+
+	/**
+	 *
+	 * Runs a command and waits for it to terminate
+	 *
+	 * @param command the command line, on a single line
+	 * @return the result, its standard output contains both the output and
+	 *         the errors
+	 */
+	public ProcessResult execute(String command) throws IOException {
+		return execute(command, DEFAULT_TIMEOUT, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 *
+	 * Runs a command and waits for it to terminate. If it does not terminate
+	 * in time, the session is closed and a new one is opened by the next
+	 * command.
+	 *
+	 * @param command the command line, on a single line
+	 * @param timeout maximum time to wait
+	 * @param unit unit of the timeout
+	 * @return the result, its standard output contains both the output and
+	 *         the errors
+	 */
+	public synchronized ProcessResult execute(String command, long timeout, TimeUnit unit) throws IOException {
+
+		if (command.indexOf('\n') >= 0 || command.indexOf('\r') >= 0) {
+			throw new IllegalArgumentException("The command must be on a single line: " + command);
+		}
+
+		long start = System.nanoTime();
+		long deadline = start + unit.toNanos(timeout);
+
+		if (mSocket == null) {
+			open();
+		}
+
+		String id = mToken + "_" + (mNextId++);
+		String begin = "__BEGIN_" + id;
+		String end = "__END_" + id + "_";
+
+		String trimmed = command.trim();
+
+		while (trimmed.endsWith(";")) {
+			trimmed = trimmed.substring(0, trimmed.length() - 1).trim();
+		}
+
+		// the quotes keep the echo of the input from matching the markers
+		String line = "echo __BEGIN_\"\"" + id + "; " + trimmed + (trimmed.endsWith("&") ? " " : "; ")
+				+ "echo __END_\"\"" + id + "_$?\n";
+
+		try {
+
+			mOut.write(line.getBytes(UTF8));
+			mOut.flush();
+
+			StringBuilder output = new StringBuilder();
+			boolean truncated = false;
+			boolean started = false;
+
+			while (true) {
+
+				String received = readLine(deadline);
+
+				if (!started) {
+					started = received.endsWith(begin);
+					continue;
+				}
+
+				int index = received.indexOf(end);
+
+				if (index >= 0) {
+
+					output.append(received, 0, index);
+
+					String code = received.substring(index + end.length()).trim();
+
+					byte[] data = output.toString().getBytes(UTF8);
+
+					return new ProcessResult(new String[] { command }, Integer.parseInt(code), data, truncated,
+							new byte[0], false, System.nanoTime() - start);
+				}
+
+				if (output.length() + received.length() < ProcessRunner.DEFAULT_MAX_CAPTURE) {
+					output.append(received).append('\n');
+				} else {
+					truncated = true;
+				}
+			}
+
+		} catch (IOException e) {
+			close();
+			throw e;
+		} catch (NumberFormatException e) {
+			close();
+			throw new IOException("Invalid exit code for " + command, e);
+		}
+	}
+
+	/**
+	 *
+	 * Closes the shell, the next command opens a new one
+	 *
+	 */
+	public synchronized void close() {
+
+		if (mSocket == null) return;
+
+		try {
+			mSocket.close();
+		} catch (IOException e) {
+			// nothing to do
+		}
+
+		mSocket = null;
+		mIn = null;
+		mOut = null;
+	}
+
+	public synchronized boolean isOpen() {
+		return mSocket != null;
+	}
+
+	private void open() throws IOException {
+		mSocket = mClient.openShell(mSerial);
+		mIn = new BufferedInputStream(mSocket.getInputStream());
+		mOut = mSocket.getOutputStream();
+	}
+
+	/**
+	 * Reads a line without its line ending
+	 */
+	private String readLine(long deadline) throws IOException {
+
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+		while (true) {
+
+			long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+
+			if (remaining <= 0) {
+				throw new SocketTimeoutException("Timeout while waiting for the shell of " + mSerial);
+			}
+
+			mSocket.setSoTimeout((int) Math.min(remaining, Integer.MAX_VALUE));
+
+			int b = mIn.read();
+
+			if (b == -1) {
+				throw new EOFException("The shell of " + mSerial + " was closed");
+			}
+
+			if (b == '\n') {
+				return new String(line.toByteArray(), UTF8);
+			}
+
+			if (b != '\r') {
+				line.write(b);
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "shell " + mSerial + (isOpen() ? " (open)" : "");
+	}
+}
@@ -0,0 +1,141 @@
+/*******************************************************************************
+ * Copyright (c) 2014, Lorenzo Keller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package ch.nodo.multiuiautomator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ * Describes how an emulator is started: the flags given to the emulator and
+ * how long and how often to check that it is ready.
+ *
+ * <ul>
+ * <li>{@link #cold()} ignores the snapshots and boots Android from scratch</li>
+ * <li>{@link #quickBoot()} lets the emulator resume from the snapshot saved
+ * when it was last closed, if any</li>
+ * <li>{@link #snapshot(String)} resumes from a named snapshot and keeps it
+ * unchanged</li>
+ * </ul>
+ *
+ */
+public class StartupProfile {
+
+	private static final List<String> BASE_ARGUMENTS = Arrays.asList("-scale", "0.6", "-no-boot-anim", "-noaudio");
+
+	private final String mName;
+	private final List<String> mArguments;
+	private final long mBootTimeout;
+	private final long mFirstCheckDelay;
+
+	private StartupProfile(String name, long bootTimeout, long firstCheckDelay, String... arguments) {
+
+		List<String> all = new ArrayList<String>(BASE_ARGUMENTS);
+		all.addAll(Arrays.asList(arguments));
+
+		mName = name;
+		mArguments = Collections.unmodifiableList(all);
+		mBootTimeout = bootTimeout;
+		mFirstCheckDelay = firstCheckDelay;
+	}
+
+	/**
+	 *
+	 * Full boot, the snapshots are neither loaded nor saved
+	 *
+	 */
+	public static StartupProfile cold() {
+		return new StartupProfile("cold", TimeUnit.MINUTES.toMillis(5), 1000, "-no-snapshot-load", "-no-snapshot-save");
+	}
+
+	/**
+	 *
+	 * Resumes from the snapshot saved when the emulator was last closed, and
+	 * boots normally when there is none. This is how the emulator starts
+	 * without flags.
+	 *
+	 */
+	public static StartupProfile quickBoot() {
+		return new StartupProfile("quick-boot", TimeUnit.MINUTES.toMillis(5), 100);
+	}
+
+	/**
+	 *
+	 * Resumes from a snapshot of the AVD, for example one saved from the
+	 * emulator console with <code>avd snapshot save name</code>. The snapshot
+	 * is not overwritten when the emulator stops, so each start sees the same
+	 * state.
+	 *
+	 * @param snapshot name of the snapshot
+	 */
+	public static StartupProfile snapshot(String snapshot) {
+		return new StartupProfile("snapshot:" + snapshot, TimeUnit.MINUTES.toMillis(2), 100, "-snapshot", snapshot,
+				"-no-snapshot-save");
+	}
+
+	/**
+	 *
+	 * Returns a copy of this profile that waits at most the given time for
+	 * the device to be ready
+	 *
+	 */
+	public StartupProfile withBootTimeout(long timeout, TimeUnit unit) {
+		return new StartupProfile(mName, unit.toMillis(timeout), mFirstCheckDelay, extraArguments());
+	}
+
+	public String getName() {
+		return mName;
+	}
+
+	/**
+	 *
+	 * Returns the emulator arguments, without the AVD and the port
+	 *
+	 */
+	public List<String> getArguments() {
+		return mArguments;
+	}
+
+	/**
+	 *
+	 * Returns the maximum time to wait for the device to be ready, in
+	 * milliseconds
+	 *
+	 */
+	public long getBootTimeout() {
+		return mBootTimeout;
+	}
+
+	/**
+	 *
+	 * Returns the delay before checking again if the device is ready the
+	 * first time it is not, in milliseconds. It then grows exponentially.
+	 *
+	 */
+	public long getFirstCheckDelay() {
+		return mFirstCheckDelay;
+	}
+
+	private String[] extraArguments() {
+		List<String> extra = mArguments.subList(BASE_ARGUMENTS.size(), mArguments.size());
+		return extra.toArray(new String[extra.size()]);
+	}
+
+	@Override
+	public String toString() {
+		return mName;
+	}
+}
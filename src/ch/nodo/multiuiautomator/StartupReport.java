@@ -0,0 +1,102 @@
+/*******************************************************************************
+ * Copyright (c) 2014, Lorenzo Keller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package ch.nodo.multiuiautomator;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ * Collects the time emulators took to be ready after being started, grouped
+ * by {@link StartupProfile}, to compare the profiles.
+ *
+ */
+public class StartupReport {
+
+	private static final int CAPACITY = 256;
+
+	private static StartupReport sDefault;
+
+	private final Map<String, LatencyStats> mStats = new LinkedHashMap<String, LatencyStats>();
+
+	/**
+	 *
+	 * Returns the report filled by all the emulator controllers
+	 *
+	 */
+	public static synchronized StartupReport getDefault() {
+
+		if (sDefault == null) {
+			sDefault = new StartupReport();
+		}
+
+		return sDefault;
+	}
+
+	/**
+	 *
+	 * Records the startup time of an emulator
+	 *
+	 * @param profile the profile used to start it
+	 * @param nanos the time between the start and the moment it was ready
+	 */
+	public void record(StartupProfile profile, long nanos) {
+		getStats(profile.getName()).record(nanos);
+	}
+
+	/**
+	 *
+	 * Returns the startup times of a profile
+	 *
+	 * @param profile name of the profile
+	 */
+	public synchronized LatencyStats getStats(String profile) {
+
+		LatencyStats stats = mStats.get(profile);
+
+		if (stats == null) {
+			stats = new LatencyStats(CAPACITY);
+			mStats.put(profile, stats);
+		}
+
+		return stats;
+	}
+
+	public synchronized void reset() {
+		mStats.clear();
+	}
+
+	/**
+	 *
+	 * Returns one line per profile with the number of starts and the median
+	 * and maximum startup times
+	 *
+	 */
+	@Override
+	public synchronized String toString() {
+
+		StringBuilder builder = new StringBuilder();
+
+		for (Map.Entry<String, LatencyStats> entry : mStats.entrySet()) {
+
+			LatencyStats stats = entry.getValue();
+
+			builder.append(String.format("%-24s starts=%d p50=%dms max=%dms%n", entry.getKey(), stats.getCount(),
+					TimeUnit.MICROSECONDS.toMillis(stats.getPercentileMicros(50)),
+					TimeUnit.MICROSECONDS.toMillis(stats.getPercentileMicros(100))));
+		}
+
+		return builder.toString();
+	}
+}
@@ -0,0 +1,231 @@
+/*******************************************************************************
+ * Copyright (c) 2014, Lorenzo Keller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package ch.nodo.multiuiautomator;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.github.uiautomatorstub.AutomatorService;
+
+/**
+ *
+ * Keeps track of the object ids created on the automator server and removes
+ * them from the server once they are not used anymore.
+ *
+ * Each id is tracked together with the host object using it. When that
+ * object is garbage collected, or when the id is explicitly released, the id
+ * is queued and removed from the server in the background, many ids per
+ * request.
+ *
+ */
+public class UiObjectHandleTracker {
+
+	private static final int MAX_BATCH_SIZE = 100;
+
+	private static class Handle extends WeakReference<Object> {
+
+		private final String mId;
+
+		Handle(Object owner, String id, ReferenceQueue<Object> queue) {
+			super(owner, queue);
+			mId = id;
+		}
+	}
+
+	private final PooledJsonRpcHttpClient mClient;
+	private final AutomatorService mService;
+
+	private final Map<String, Handle> mHandles = new ConcurrentHashMap<String, Handle>();
+	private final ReferenceQueue<Object> mQueue = new ReferenceQueue<Object>();
+	private final List<String> mReleased = new ArrayList<String>();
+
+	private final ScheduledExecutorService mExecutor;
+
+	private long mRemoved;
+	private long mFailures;
+
+	/**
+	 * @param name used to name the background thread
+	 * @param client the client used to send the batched removals
+	 * @param service the service used to send single removals
+	 * @param flushInterval time in milliseconds between two removal rounds
+	 */
+	public UiObjectHandleTracker(final String name, PooledJsonRpcHttpClient client, AutomatorService service, long flushInterval) {
+
+		mClient = client;
+		mService = service;
+
+		mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "automator-" + name + "-handles");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		mExecutor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				flush();
+			}
+		}, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 *
+	 * Starts tracking an id, it will be released when the owner is garbage
+	 * collected.
+	 *
+	 * @param owner the object using the id
+	 * @param id the id returned by the server
+	 */
+	public void track(Object owner, String id) {
+		mHandles.put(id, new Handle(owner, id, mQueue));
+	}
+
+	/**
+	 *
+	 * Releases an id that is not used anymore by its owner.
+	 *
+	 * @param id the id returned by the server
+	 */
+	public void release(String id) {
+
+		Handle handle = mHandles.remove(id);
+
+		if (handle == null) return;
+
+		handle.clear();
+
+		synchronized (mReleased) {
+			mReleased.add(id);
+		}
+	}
+
+	/**
+	 *
+	 * Returns the number of ids that are in use on the host
+	 *
+	 */
+	public int getLiveHandles() {
+		return mHandles.size();
+	}
+
+	/**
+	 *
+	 * Returns the number of ids that were removed from the server
+	 *
+	 */
+	public synchronized long getRemovedHandles() {
+		return mRemoved;
+	}
+
+	/**
+	 *
+	 * Returns the number of ids that could not be removed from the server
+	 *
+	 */
+	public synchronized long getFailures() {
+		return mFailures;
+	}
+
+	/**
+	 *
+	 * Removes from the server all the ids that are not used anymore. This is
+	 * done periodically in the background.
+	 *
+	 */
+	public synchronized void flush() {
+
+		List<String> ids;
+
+		synchronized (mReleased) {
+			ids = new ArrayList<String>(mReleased);
+			mReleased.clear();
+		}
+
+		Reference<? extends Object> reference;
+
+		while ((reference = mQueue.poll()) != null) {
+
+			Handle handle = (Handle) reference;
+
+			if (mHandles.remove(handle.mId) != null) {
+				ids.add(handle.mId);
+			}
+		}
+
+		for (int i = 0; i < ids.size(); i += MAX_BATCH_SIZE) {
+			remove(ids.subList(i, Math.min(ids.size(), i + MAX_BATCH_SIZE)));
+		}
+	}
+
+	private void remove(List<String> ids) {
+
+		try {
+
+			if (ids.size() == 1) {
+
+				mService.removeUiObject(ids.get(0));
+
+				mRemoved++;
+
+			} else {
+
+				AutomatorBatch batch = new AutomatorBatch(mClient);
+
+				for (String id : ids) {
+					batch.getService().removeUiObject(id);
+				}
+
+				// the server may reject some of the ids and accept the others
+				for (AutomatorBatch.Result result : batch.execute()) {
+					if (result.isError()) {
+						mFailures++;
+					} else {
+						mRemoved++;
+					}
+				}
+			}
+
+		} catch (RuntimeException e) {
+			mFailures += ids.size();
+		}
+	}
+
+	/**
+	 *
+	 * Stops the background removal, the ids still on the server are left
+	 * there.
+	 *
+	 */
+	public void close() {
+		mExecutor.shutdownNow();
+		mHandles.clear();
+	}
+
+	@Override
+	public String toString() {
+		return "live=" + getLiveHandles() + " removed=" + getRemovedHandles() + " failures=" + getFailures();
+	}
+}
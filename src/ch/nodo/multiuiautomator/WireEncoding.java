@@ -0,0 +1,112 @@
+/*******************************************************************************
+ * Copyright (c) 2014, Lorenzo Keller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package ch.nodo.multiuiautomator;
+
+import java.io.IOException;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ *
+ * The encodings that can be used for the JSON-RPC payloads exchanged with the
+ * automator server.
+ *
+ * Binary encodings are only available when the corresponding Jackson data
+ * format module is on the classpath.
+ *
+ */
+public enum WireEncoding {
+
+	JSON("application/json-rpc", null),
+
+	/**
+	 * Binary JSON, requires jackson-dataformat-smile
+	 */
+	SMILE("application/x-jackson-smile", "com.fasterxml.jackson.dataformat.smile.SmileFactory");
+
+	private final String mContentType;
+	private final ObjectMapper mMapper;
+
+	private WireEncoding(String contentType, String factoryClass) {
+
+		mContentType = contentType;
+
+		ObjectMapper mapper = null;
+
+		if (factoryClass == null) {
+			mapper = new ObjectMapper();
+		} else {
+			try {
+				mapper = new ObjectMapper((JsonFactory) Class.forName(factoryClass).getDeclaredConstructor().newInstance());
+			} catch (Exception e) {
+				// module not available
+			} catch (LinkageError e) {
+				// module not compatible with the Jackson version in use
+			}
+		}
+
+		mMapper = mapper;
+	}
+
+	public String getContentType() {
+		return mContentType;
+	}
+
+	/**
+	 *
+	 * Returns true if this encoding can be used by this JVM
+	 *
+	 */
+	public boolean isAvailable() {
+		return mMapper != null;
+	}
+
+	/**
+	 *
+	 * Returns the mapper that reads and writes this encoding
+	 *
+	 */
+	public ObjectMapper getObjectMapper() {
+
+		if (mMapper == null) {
+			throw new UnsupportedOperationException("Encoding " + name() + " is not available");
+		}
+
+		return mMapper;
+	}
+
+	public byte[] encode(JsonNode node) throws IOException {
+		return getObjectMapper().writeValueAsBytes(node);
+	}
+
+	public JsonNode decode(byte[] data) throws IOException {
+		return getObjectMapper().readTree(data);
+	}
+
+	/**
+	 *
+	 * Guesses the encoding of a payload from its first bytes.
+	 *
+	 */
+	public static WireEncoding detect(byte[] data) {
+
+		// Smile documents start with the ":)\n" header
+		if (data.length >= 3 && data[0] == ':' && data[1] == ')' && data[2] == '\n') {
+			return SMILE;
+		}
+
+		return JSON;
+	}
+}
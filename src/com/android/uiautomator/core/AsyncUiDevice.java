@@ -0,0 +1,91 @@
+/*******************************************************************************
+ * Copyright (c) 2014, Lorenzo Keller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package com.android.uiautomator.core;
+
+import java.util.concurrent.Future;
+
+import com.github.uiautomatorstub.AsyncAutomatorService;
+import com.github.uiautomatorstub.DeviceInfo;
+
+/**
+ * Non blocking variant of the most common {@link UiDevice} actions.
+ *
+ * Actions are executed in the order in which they are requested, queries can
+ * be sent without waiting for the previous ones to complete.
+ *
+ * Obtain an instance with {@link UiDevice#async()}.
+ */
+public class AsyncUiDevice {
+
+	private final AsyncAutomatorService mService;
+
+	AsyncUiDevice(AsyncAutomatorService service) {
+		mService = service;
+	}
+
+	/**
+	 * Returns the underlying service for calls not covered by this class
+	 */
+	public AsyncAutomatorService getAutomatorService() {
+		return mService;
+	}
+
+	public Future<DeviceInfo> deviceInfo() {
+		return mService.deviceInfo();
+	}
+
+	public Future<Boolean> pressMenu() {
+		return mService.pressKey("menu");
+	}
+
+	public Future<Boolean> pressBack() {
+		return mService.pressKey("back");
+	}
+
+	public Future<Boolean> pressHome() {
+		return mService.pressKey("home");
+	}
+
+	public Future<Boolean> pressSearch() {
+		return mService.pressKey("search");
+	}
+
+	public Future<Boolean> pressEnter() {
+		return mService.pressKey("enter");
+	}
+
+	public Future<Boolean> pressDelete() {
+		return mService.pressKey("delete");
+	}
+
+	public Future<Boolean> pressKeyCode(int keyCode) {
+		return mService.pressKeyCode(keyCode);
+	}
+
+	public Future<Boolean> pressKeyCode(int keyCode, int metaState) {
+		return mService.pressKeyCode(keyCode, metaState);
+	}
+
+	public Future<Boolean> click(int x, int y) {
+		return mService.click(x, y);
+	}
+
+	public Future<Boolean> swipe(int startX, int startY, int endX, int endY, int steps) {
+		return mService.swipe(startX, startY, endX, endY, steps);
+	}
+
+	public Future<Void> waitForIdle(long timeout) {
+		return mService.waitForIdle(timeout);
+	}
+}
@@ -0,0 +1,152 @@
+/*******************************************************************************
+ * Copyright (c) 2014, Lorenzo Keller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package com.android.uiautomator.core;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+import android.graphics.Rect;
+
+import ch.nodo.multiuiautomator.AutomatorCallQueue;
+
+/**
+ * Non blocking variant of the most common {@link UiObject} actions and
+ * queries.
+ *
+ * Actions are executed in the order in which they are requested, queries can
+ * be sent without waiting for the previous ones to complete. A
+ * {@link UiObjectNotFoundException} is reported as the cause of the
+ * {@link java.util.concurrent.ExecutionException} thrown by {@link Future#get()}.
+ *
+ * Obtain an instance with {@link UiObject#async()}.
+ */
+public class AsyncUiObject {
+
+	private final UiObject mObject;
+	private final AutomatorCallQueue mQueue;
+
+	AsyncUiObject(UiObject object, AutomatorCallQueue queue) {
+		mObject = object;
+		mQueue = queue;
+	}
+
+	public Future<Boolean> click() {
+		return mQueue.submit(false, new Callable<Boolean>() {
+			@Override
+			public Boolean call() throws Exception {
+				return mObject.click();
+			}
+		});
+	}
+
+	public Future<Boolean> longClick() {
+		return mQueue.submit(false, new Callable<Boolean>() {
+			@Override
+			public Boolean call() throws Exception {
+				return mObject.longClick();
+			}
+		});
+	}
+
+	public Future<Boolean> setText(final String text) {
+		return mQueue.submit(false, new Callable<Boolean>() {
+			@Override
+			public Boolean call() throws Exception {
+				return mObject.setText(text);
+			}
+		});
+	}
+
+	public Future<Void> clearTextField() {
+		return mQueue.submit(false, new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				mObject.clearTextField();
+				return null;
+			}
+		});
+	}
+
+	public Future<Boolean> exists() {
+		return mQueue.submit(true, new Callable<Boolean>() {
+			@Override
+			public Boolean call() throws Exception {
+				return mObject.exists();
+			}
+		});
+	}
+
+	public Future<UiObjectSnapshot> snapshot() {
+		return mQueue.submit(true, new Callable<UiObjectSnapshot>() {
+			@Override
+			public UiObjectSnapshot call() throws Exception {
+				return mObject.snapshot();
+			}
+		});
+	}
+
+	public Future<String> getText() {
+		return mQueue.submit(true, new Callable<String>() {
+			@Override
+			public String call() throws Exception {
+				return mObject.getText();
+			}
+		});
+	}
+
+	public Future<String> getClassName() {
+		return mQueue.submit(true, new Callable<String>() {
+			@Override
+			public String call() throws Exception {
+				return mObject.getClassName();
+			}
+		});
+	}
+
+	public Future<String> getContentDescription() {
+		return mQueue.submit(true, new Callable<String>() {
+			@Override
+			public String call() throws Exception {
+				return mObject.getContentDescription();
+			}
+		});
+	}
+
+	public Future<Boolean> isChecked() {
+		return mQueue.submit(true, new Callable<Boolean>() {
+			@Override
+			public Boolean call() throws Exception {
+				return mObject.isChecked();
+			}
+		});
+	}
+
+	public Future<Boolean> isEnabled() {
+		return mQueue.submit(true, new Callable<Boolean>() {
+			@Override
+			public Boolean call() throws Exception {
+				return mObject.isEnabled();
+			}
+		});
+	}
+
+	public Future<Rect> getBounds() {
+		return mQueue.submit(true, new Callable<Rect>() {
+			@Override
+			public Rect call() throws Exception {
+				return mObject.getBounds();
+			}
+		});
+	}
+}
@@ -69,7 +69,7 @@ public class UiCollection extends UiObject {
 			
 		};
     	
-		return new UiObject(retriever, mAutomatorService);
+		return new UiObject(retriever, mDevice);
     	
     }
 
@@ -102,7 +102,7 @@ public class UiCollection extends UiObject {
 			
 		};
     	
-		return new UiObject(retriever, mAutomatorService);
+		return new UiObject(retriever, mDevice);
     	
     }
 
@@ -137,7 +137,7 @@ public class UiCollection extends UiObject {
 			
 		};
     	
-		return new UiObject(retriever, mAutomatorService);
+		return new UiObject(retriever, mDevice);
     	
     }
 
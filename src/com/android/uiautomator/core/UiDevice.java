@@ -22,10 +22,14 @@
 package com.android.uiautomator.core;
 
 import java.io.File;
+import java.util.List;
 
 import android.graphics.Point;
 import android.os.RemoteException;
 
+import ch.nodo.multiuiautomator.AutomatorBatch;
+import ch.nodo.multiuiautomator.DeviceInfoCache;
+import ch.nodo.multiuiautomator.UiObjectHandleTracker;
 import ch.nodo.multiuiautomator.SdkTools.EmulatorController;
 
 import com.github.uiautomatorstub.AutomatorService;
@@ -43,15 +47,39 @@ public class UiDevice {
 	private AutomatorService mAutomatorService;
 	private boolean mCompressed;
 	private EmulatorController mController;
+	private DeviceInfoCache mDeviceInfo;
 
 	public UiDevice(EmulatorController controller, AutomatorService automatorService) {
 		this.mAutomatorService = automatorService;
 		this.mController= controller; 
+		this.mDeviceInfo = controller != null ? controller.getDeviceInfoCache() : new DeviceInfoCache(automatorService);
 	}
 	
 	public EmulatorController getEmulatorController() {
 		return mController;
 	}
+
+    /**
+     * Sets for how long the display size and rotation are reused before
+     * asking the device again. Changing the orientation through this object
+     * always drops them.
+     *
+     * @param maxAge time in milliseconds, 0 to always ask the device
+     */
+    public void setDeviceInfoMaxAge(long maxAge) {
+    	mDeviceInfo.setMaxAge(maxAge);
+    }
+
+    /**
+     * Returns the last device information fetched from the device without
+     * asking the device again. Only the product name and SDK version are
+     * guaranteed to be current.
+     *
+     * @return the cached device information
+     */
+    public DeviceInfo getDeviceInfoSnapshot() {
+    	return mDeviceInfo.getSnapshot();
+    }
 	
     /**
      * Enables or disables layout hierarchy compression.
@@ -77,7 +105,7 @@ public class UiDevice {
      * @return a Point containing the display size in dp
      */
     public Point getDisplaySizeDp() {
-    	DeviceInfo info = mAutomatorService.deviceInfo();
+    	DeviceInfo info = mDeviceInfo.getDisplay();
         return new Point(info.getDisplayWidth(), info.getDisplayHeight());
     }
 
@@ -91,7 +119,7 @@ public class UiDevice {
      * @since API Level 17
      */
     public String getProductName() {
-    	DeviceInfo info = mAutomatorService.deviceInfo();
+    	DeviceInfo info = mDeviceInfo.getStatic();
         return info.getProductName();
     }
 
@@ -340,7 +368,7 @@ public class UiDevice {
      * @since API Level 16
      */
     public int getDisplayWidth() {
-        return mAutomatorService.deviceInfo().getDisplayWidth();
+        return mDeviceInfo.getDisplay().getDisplayWidth();
     }
 
     /**
@@ -350,7 +378,7 @@ public class UiDevice {
      * @since API Level 16
      */
     public int getDisplayHeight() {
-    	return mAutomatorService.deviceInfo().getDisplayHeight();
+    	return mDeviceInfo.getDisplay().getDisplayHeight();
     }
 
     /**
@@ -453,7 +481,7 @@ public class UiDevice {
      * @since API Level 16
      */
     public String getCurrentPackageName() {
-    	return mAutomatorService.deviceInfo().getCurrentPackageName();
+    	return mDeviceInfo.fetch().getCurrentPackageName();
     }
 
     /**
@@ -532,7 +560,7 @@ public class UiDevice {
      * @since API Level 17
      */
     public boolean isNaturalOrientation() {
-    	return mAutomatorService.deviceInfo().isNaturalOrientation();
+    	return mDeviceInfo.getDisplay().isNaturalOrientation();
     }
 
     /**
@@ -540,7 +568,7 @@ public class UiDevice {
      * @since API Level 17
      */
     public int getDisplayRotation() {
-    	return mAutomatorService.deviceInfo().getDisplayRotation();
+    	return mDeviceInfo.getDisplay().getDisplayRotation();
     }
 
     /**
@@ -550,7 +578,11 @@ public class UiDevice {
      * @since API Level 16
      */
     public void freezeRotation() throws RemoteException {
-    	mAutomatorService.freezeRotation(true);
+    	try {
+    		mAutomatorService.freezeRotation(true);
+    	} finally {
+    		mDeviceInfo.invalidateDisplay();
+    	}
     }
 
     /**
@@ -560,7 +592,11 @@ public class UiDevice {
      * @throws RemoteException
      */
     public void unfreezeRotation() throws RemoteException {
-    	mAutomatorService.freezeRotation(false);
+    	try {
+    		mAutomatorService.freezeRotation(false);
+    	} finally {
+    		mDeviceInfo.invalidateDisplay();
+    	}
     }
 
     /**
@@ -577,6 +613,8 @@ public class UiDevice {
 			mAutomatorService.setOrientation("left");
 		} catch (NotImplementedException e) {
 			throw new UnsupportedOperationException();
+		} finally {
+			mDeviceInfo.invalidateDisplay();
 		}
     }
 
@@ -594,6 +632,8 @@ public class UiDevice {
 			mAutomatorService.setOrientation("right");
 		} catch (NotImplementedException e) {
 			throw new UnsupportedOperationException();
+		} finally {
+			mDeviceInfo.invalidateDisplay();
 		}
     }
 
@@ -611,6 +651,8 @@ public class UiDevice {
 			mAutomatorService.setOrientation("natural");
 		} catch (NotImplementedException e) {
 			throw new UnsupportedOperationException();
+		} finally {
+			mDeviceInfo.invalidateDisplay();
 		}
     }
 
@@ -715,6 +757,45 @@ public class UiDevice {
 		}
     }
 
+    /**
+     * Returns a non blocking variant of this device. Actions requested through
+     * it are executed in order, queries can overlap.
+     *
+     * @return an {@link AsyncUiDevice} bound to the same device
+     */
+    public AsyncUiDevice async() {
+    	return new AsyncUiDevice(requireController("async").getAsyncAutomatorService());
+    }
+
+    /**
+     * Sends all the calls recorded by the block to the device in a single
+     * request. If the device does not support batches the calls are sent one
+     * after the other.
+     *
+     * @param block records the calls on the {@link AutomatorService} it receives
+     * @return the result or error of every recorded call, in order
+     */
+    public List<AutomatorBatch.Result> batch(AutomatorBatch.Block block) {
+    	return requireController("batch").batch(block);
+    }
+
+	/**
+	 * Returns the controller of the device, fails if this device was created
+	 * without one
+	 */
+	EmulatorController requireController(String feature) {
+
+		if (mController == null) {
+			throw new IllegalStateException(feature + "() needs a UiDevice created with an emulator controller");
+		}
+
+		return mController;
+	}
+
+	UiObjectHandleTracker getHandleTracker() {
+		return mController != null ? mController.getHandleTracker() : null;
+	}
+
 	AutomatorService getAutomatorService() {
 		return mAutomatorService;
 	}
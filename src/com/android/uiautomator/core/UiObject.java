@@ -20,12 +20,20 @@
 
 package com.android.uiautomator.core;
 
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
 import android.graphics.Point;
 import android.graphics.Rect;
 import android.view.MotionEvent.PointerCoords;
 
+import ch.nodo.multiuiautomator.UiObjectHandleTracker;
+
 import com.github.uiautomatorstub.AutomatorService;
 import com.github.uiautomatorstub.NotImplementedException;
+import com.github.uiautomatorstub.ObjInfo;
 import com.github.uiautomatorstub.Selector;
 
 /**
@@ -40,6 +48,8 @@ public class UiObject {
     
     protected final UiSelector mSelector;
 
+    protected final UiDevice mDevice;
+
     protected AutomatorService mAutomatorService;
 
     protected interface ObjectRetriever {
@@ -49,6 +59,14 @@ public class UiObject {
     protected final ObjectRetriever mRetriever;
     
     protected final Configurator mConfigurator;
+
+    private final UiObjectHandleTracker mHandleTracker;
+
+    private String mObjectId;
+
+    private volatile long mPropertiesMaxAge;
+    private ObjInfo mProperties;
+    private long mPropertiesTime;
     
     /**
      * Constructs a UiObject to represent a view that matches the specified
@@ -59,25 +77,114 @@ public class UiObject {
     public UiObject(UiDevice device, UiSelector selector) {
     	
         mSelector = selector;
-        mAutomatorService = device.getAutomatorService();
+        mDevice = device;
+        mHandleTracker = device.getHandleTracker();
+        mAutomatorService = retryOnStaleObject(device.getAutomatorService());
         
-        mRetriever = new ObjectRetriever() {
+        mRetriever = memoize(new ObjectRetriever() {
 			@Override
 			public String getObjectId() throws UiObjectNotFoundException {
 				return mAutomatorService.getUiObject(mSelector.toSelector());
 			}
-		};
+		});
 		
-		mConfigurator = Configurator.getInstance(mAutomatorService);
+		mConfigurator = Configurator.getInstance(device.getAutomatorService());
     }
     
-    protected UiObject(ObjectRetriever retriever, AutomatorService service) {
+    protected UiObject(ObjectRetriever retriever, UiDevice device) {
     	
-    	mAutomatorService = service;
+    	mDevice = device;
+    	mHandleTracker = device.getHandleTracker();
+    	mAutomatorService = retryOnStaleObject(device.getAutomatorService());
     	mSelector = null;
-    	mRetriever = retriever;
+    	mRetriever = memoize(retriever);
+
+		mConfigurator = Configurator.getInstance(device.getAutomatorService());
+    }
+
+    /**
+     * Forgets the view this object was resolved to. The next action or query
+     * looks up the view again.
+     *
+     * This is done automatically, once, when the device reports that the
+     * resolved view no longer exists.
+     */
+    public void refresh() {
+    	
+    	String objectId;
+    	
+    	synchronized (this) {
+    		objectId = mObjectId;
+    		mObjectId = null;
+    	}
+    	
+    	if (objectId != null && mHandleTracker != null) {
+    		mHandleTracker.release(objectId);
+    	}
+    	
+    	invalidateProperties();
+    }
+
+    /**
+     * Resolves the view on the first call and returns the same remote object
+     * id until {@link #refresh()} is called.
+     */
+    private ObjectRetriever memoize(final ObjectRetriever retriever) {
+    	return new ObjectRetriever() {
+			@Override
+			public String getObjectId() throws UiObjectNotFoundException {
+				synchronized (UiObject.this) {
+					if (mObjectId == null) {
+						mObjectId = retriever.getObjectId();
+						if (mHandleTracker != null) {
+							mHandleTracker.track(UiObject.this, mObjectId);
+						}
+					}
+					return mObjectId;
+				}
+			}
+		};
+    }
 
-		mConfigurator = Configurator.getInstance(mAutomatorService);
+    /**
+     * Wraps the service so that a call made with the resolved object id is
+     * retried once with a newly resolved id if the device does not know the
+     * object anymore.
+     */
+    private AutomatorService retryOnStaleObject(final AutomatorService service) {
+    	return (AutomatorService) Proxy.newProxyInstance(AutomatorService.class.getClassLoader(),
+    			new Class<?>[] { AutomatorService.class }, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				
+				String objectId;
+				
+				synchronized (UiObject.this) {
+					objectId = mObjectId;
+				}
+				
+				try {
+					return method.invoke(service, args);
+				} catch (InvocationTargetException e) {
+					
+					if (!(e.getCause() instanceof UiObjectNotFoundException) || objectId == null
+							|| args == null || args.length == 0 || !objectId.equals(args[0])) {
+						throw e.getCause();
+					}
+				}
+				
+				refresh();
+				
+				Object[] retryArgs = args.clone();
+				retryArgs[0] = mRetriever.getObjectId();
+				
+				try {
+					return method.invoke(service, retryArgs);
+				} catch (InvocationTargetException e) {
+					throw e.getCause();
+				}
+			}
+		});
     }
 
     /**
@@ -91,6 +198,80 @@ public class UiObject {
         return new UiSelector(mSelector);
     }
 
+    /**
+     * Returns a non blocking variant of this object. Actions requested through
+     * it are executed in order with the other asynchronous calls to the same
+     * device, queries can overlap.
+     *
+     * @return an {@link AsyncUiObject} for this object
+     */
+    public AsyncUiObject async() {
+    	return new AsyncUiObject(this, mDevice.requireController("async").getCallQueue());
+    }
+
+    /**
+     * Reads all the properties of the view with a single call to the device.
+     * Use it instead of the individual getters when checking several
+     * properties at once.
+     *
+     * @return an immutable view of the current properties
+     * @throws UiObjectNotFoundException
+     */
+    public UiObjectSnapshot snapshot() throws UiObjectNotFoundException {
+    	return new UiObjectSnapshot(fetchProperties());
+    }
+
+    /**
+     * Lets the property getters of this object (<code>getText</code>,
+     * <code>isChecked</code>, <code>getBounds</code>, ...) share the properties
+     * read from the device for a short time, instead of asking the device on
+     * every call.
+     *
+     * Any action performed through this object drops the shared properties.
+     * Changes caused by anything else are only seen once they expire.
+     *
+     * @param maxAge time in milliseconds, 0 (the default) to always ask the device
+     */
+    public void setPropertiesMaxAge(long maxAge) {
+    	mPropertiesMaxAge = maxAge;
+    	invalidateProperties();
+    }
+
+    /**
+     * Drops the properties shared by the getters, see
+     * {@link #setPropertiesMaxAge(long)}.
+     */
+    public synchronized void invalidateProperties() {
+    	mProperties = null;
+    }
+
+    private ObjInfo getProperties() throws UiObjectNotFoundException {
+    	
+    	long maxAge = mPropertiesMaxAge;
+    	
+    	if (maxAge > 0) {
+    		synchronized (this) {
+    			if (mProperties != null && System.currentTimeMillis() - mPropertiesTime <= maxAge) {
+    				return mProperties;
+    			}
+    		}
+    	}
+    	
+    	return fetchProperties();
+    }
+    
+    private ObjInfo fetchProperties() throws UiObjectNotFoundException {
+    	
+    	ObjInfo info = mAutomatorService.objInfo(mRetriever.getObjectId());
+    	
+    	synchronized (this) {
+    		mProperties = info;
+    		mPropertiesTime = System.currentTimeMillis();
+    	}
+    	
+    	return info;
+    }
+
     /**
      * Creates a new UiObject for a child view that is under the present UiObject.
      *
@@ -100,6 +281,10 @@ public class UiObject {
      */
     public UiObject getChild(UiSelector selector) throws UiObjectNotFoundException {
 
+    	if (mSelector != null) {
+    		return new UiObject(mDevice, mSelector.childSelector(selector));
+    	}
+    	
     	final Selector realSelector = selector.toSelector(); 
     	
     	ObjectRetriever retriever = new ObjectRetriever() {
@@ -110,7 +295,7 @@ public class UiObject {
 			
 		};
     	
-		return new UiObject(retriever, mAutomatorService);
+		return new UiObject(retriever, mDevice);
     	
     }
 
@@ -125,6 +310,10 @@ public class UiObject {
      */
     public UiObject getFromParent(UiSelector selector) throws UiObjectNotFoundException {
 
+    	if (mSelector != null) {
+    		return new UiObject(mDevice, mSelector.fromParent(selector));
+    	}
+    	
     	final Selector realSelector = selector.toSelector(); 
     	
     	ObjectRetriever retriever = new ObjectRetriever() {
@@ -134,7 +323,7 @@ public class UiObject {
 			}
 		};
     	
-		return new UiObject(retriever, mAutomatorService);
+		return new UiObject(retriever, mDevice);
     	
     }
 
@@ -146,7 +335,7 @@ public class UiObject {
      * @since API Level 16
      */
     public int getChildCount() throws UiObjectNotFoundException {
-        return mAutomatorService.objInfo(mRetriever.getObjectId()).getChildCount();
+        return getProperties().getChildCount();
     }
 
     /**
@@ -181,6 +370,7 @@ public class UiObject {
      */
     public boolean dragTo(int destX, int destY, int steps) throws UiObjectNotFoundException {
     	try {
+			invalidateProperties();
 			return mAutomatorService.dragTo(mRetriever.getObjectId(), destX, destY, steps);
 		} catch (NotImplementedException e) {
 			throw new UnsupportedOperationException();
@@ -204,6 +394,7 @@ public class UiObject {
      * @since API Level 16
      */
     public boolean swipeUp(int steps) throws UiObjectNotFoundException {
+        invalidateProperties();
         return mAutomatorService.swipe(mRetriever.getObjectId(), "up", steps);
     }
 
@@ -226,6 +417,7 @@ public class UiObject {
      * @since API Level 16
      */
     public boolean swipeDown(int steps) throws UiObjectNotFoundException {
+    	invalidateProperties();
     	return mAutomatorService.swipe(mRetriever.getObjectId(), "down", steps);
     }
 
@@ -248,6 +440,7 @@ public class UiObject {
      * @since API Level 16
      */
     public boolean swipeLeft(int steps) throws UiObjectNotFoundException {
+    	invalidateProperties();
     	return mAutomatorService.swipe(mRetriever.getObjectId(), "left", steps);
     }
 
@@ -270,6 +463,7 @@ public class UiObject {
      * @since API Level 16
      */
     public boolean swipeRight(int steps) throws UiObjectNotFoundException {
+    	invalidateProperties();
     	return mAutomatorService.swipe(mRetriever.getObjectId(), "right", steps);
     }
 
@@ -282,6 +476,7 @@ public class UiObject {
      * @since API Level 16
      */
     public boolean click() throws UiObjectNotFoundException {
+    	invalidateProperties();
     	return mAutomatorService.click(mRetriever.getObjectId());
     }
 
@@ -296,6 +491,7 @@ public class UiObject {
      */
     
     public boolean clickAndWaitForNewWindow() throws UiObjectNotFoundException {
+    	invalidateProperties();
     	return mAutomatorService.clickAndWaitForNewWindow(mRetriever.getObjectId(), mConfigurator.getWaitForIdleTimeout());
     }
 
@@ -315,6 +511,7 @@ public class UiObject {
      * @since API Level 16
      */
     public boolean clickAndWaitForNewWindow(long timeout) throws UiObjectNotFoundException {
+    	invalidateProperties();
     	return mAutomatorService.clickAndWaitForNewWindow(mRetriever.getObjectId(), timeout);
     }
 
@@ -326,6 +523,7 @@ public class UiObject {
      * @since API Level 16
      */
     public boolean clickTopLeft() throws UiObjectNotFoundException {
+    	invalidateProperties();
     	return mAutomatorService.click(mRetriever.getObjectId(), "topleft");
     }
 
@@ -337,6 +535,7 @@ public class UiObject {
      * @since API Level 16
      */
     public boolean longClickBottomRight() throws UiObjectNotFoundException  {
+    	invalidateProperties();
     	return mAutomatorService.longClick(mRetriever.getObjectId(), "bottomright");
     }
 
@@ -348,6 +547,7 @@ public class UiObject {
      * @since API Level 16
      */
     public boolean clickBottomRight() throws UiObjectNotFoundException {
+    	invalidateProperties();
     	return mAutomatorService.click(mRetriever.getObjectId(), "bottomright");
     }
 
@@ -359,6 +559,7 @@ public class UiObject {
      * @since API Level 16
      */
     public boolean longClick() throws UiObjectNotFoundException  {
+    	invalidateProperties();
     	return mAutomatorService.longClick(mRetriever.getObjectId());
     }
 
@@ -370,6 +571,7 @@ public class UiObject {
      * @since API Level 16
      */
     public boolean longClickTopLeft() throws UiObjectNotFoundException {
+    	invalidateProperties();
     	return mAutomatorService.longClick(mRetriever.getObjectId(), "topleft");
     }
 
@@ -381,7 +583,10 @@ public class UiObject {
      * @since API Level 16
      */
     public String getText() throws UiObjectNotFoundException {
-    	return mAutomatorService.getText(mRetriever.getObjectId());   	
+    	if (mPropertiesMaxAge > 0) {
+    		return getProperties().getText();
+    	}
+    	return mAutomatorService.getText(mRetriever.getObjectId());
     }
 
     /**
@@ -392,7 +597,7 @@ public class UiObject {
      * @since API Level 18
      */
     public String getClassName() throws UiObjectNotFoundException {
-    	return mAutomatorService.objInfo(mRetriever.getObjectId()).getClassName();
+    	return getProperties().getClassName();
     }
 
     /**
@@ -403,7 +608,7 @@ public class UiObject {
      * @since API Level 16
      */
     public String getContentDescription() throws UiObjectNotFoundException {
-    	return mAutomatorService.objInfo(mRetriever.getObjectId()).getContentDescription();
+    	return getProperties().getContentDescription();
     }
 
     /**
@@ -424,6 +629,7 @@ public class UiObject {
      * @since API Level 16
      */
     public boolean setText(String text) throws UiObjectNotFoundException {
+    	invalidateProperties();
     	return mAutomatorService.setText(mRetriever.getObjectId(), text);
     }
 
@@ -447,6 +653,7 @@ public class UiObject {
      * @since API Level 16
      */
     public void clearTextField() throws UiObjectNotFoundException {
+    	invalidateProperties();
     	mAutomatorService.clearTextField(mRetriever.getObjectId());
     }
 
@@ -457,7 +664,7 @@ public class UiObject {
      * @since API Level 16
      */
     public boolean isChecked() throws UiObjectNotFoundException {
-    	return mAutomatorService.objInfo(mRetriever.getObjectId()).isChecked();
+    	return getProperties().isChecked();
     }
 
     /**
@@ -468,7 +675,7 @@ public class UiObject {
      * @since API Level 16
      */
     public boolean isSelected() throws UiObjectNotFoundException {
-    	return mAutomatorService.objInfo(mRetriever.getObjectId()).isSelected();
+    	return getProperties().isSelected();
     }
 
     /**
@@ -479,7 +686,7 @@ public class UiObject {
      * @since API Level 16
      */
     public boolean isCheckable() throws UiObjectNotFoundException {
-    	return mAutomatorService.objInfo(mRetriever.getObjectId()).isCheckable();
+    	return getProperties().isCheckable();
     }
 
     /**
@@ -490,7 +697,7 @@ public class UiObject {
      * @since API Level 16
      */
     public boolean isEnabled() throws UiObjectNotFoundException {
-    	return mAutomatorService.objInfo(mRetriever.getObjectId()).isEnabled();
+    	return getProperties().isEnabled();
     }
 
     /**
@@ -501,7 +708,7 @@ public class UiObject {
      * @since API Level 16
      */
     public boolean isClickable() throws UiObjectNotFoundException {
-    	return mAutomatorService.objInfo(mRetriever.getObjectId()).isClickable();
+    	return getProperties().isClickable();
     }
 
     /**
@@ -512,7 +719,7 @@ public class UiObject {
      * @since API Level 16
      */
     public boolean isFocused() throws UiObjectNotFoundException {
-    	return mAutomatorService.objInfo(mRetriever.getObjectId()).isFocused();
+    	return getProperties().isFocused();
     }
 
     /**
@@ -523,7 +730,7 @@ public class UiObject {
      * @since API Level 16
      */
     public boolean isFocusable() throws UiObjectNotFoundException {
-    	return mAutomatorService.objInfo(mRetriever.getObjectId()).isFocusable();
+    	return getProperties().isFocusable();
     }
 
     /**
@@ -534,7 +741,7 @@ public class UiObject {
      * @since API Level 16
      */
     public boolean isScrollable() throws UiObjectNotFoundException {
-    	return mAutomatorService.objInfo(mRetriever.getObjectId()).isScrollable();
+    	return getProperties().isScrollable();
     }
 
     /**
@@ -545,7 +752,7 @@ public class UiObject {
      * @since API Level 16
      */
     public boolean isLongClickable() throws UiObjectNotFoundException {
-    	return mAutomatorService.objInfo(mRetriever.getObjectId()).isLongClickable();
+    	return getProperties().isLongClickable();
     }
 
     /**
@@ -556,7 +763,7 @@ public class UiObject {
      * @since API Level 16
      */
     public String getPackageName() throws UiObjectNotFoundException {
-    	return mAutomatorService.objInfo(mRetriever.getObjectId()).getPackageName();
+    	return getProperties().getPackageName();
     }
 
     /**
@@ -571,7 +778,7 @@ public class UiObject {
      * @since API Level 17
      */
     public Rect getVisibleBounds() throws UiObjectNotFoundException {
-    	return mAutomatorService.objInfo(mRetriever.getObjectId()).getVisibleBounds().toRect();
+    	return getProperties().getVisibleBounds().toRect();
     }
 
     /**
@@ -582,7 +789,7 @@ public class UiObject {
      * @since API Level 16
      */
     public Rect getBounds() throws UiObjectNotFoundException {
-    	return mAutomatorService.objInfo(mRetriever.getObjectId()).getBounds().toRect();
+    	return getProperties().getBounds().toRect();
     }
 
     /**
@@ -677,6 +884,7 @@ public class UiObject {
      */
     public boolean pinchOut(int percent, int steps) throws UiObjectNotFoundException {
     	try {
+			invalidateProperties();
 			return mAutomatorService.pinchOut(mRetriever.getObjectId(), percent, steps);
 		} catch (NotImplementedException e) {
 			throw new UnsupportedOperationException();
@@ -696,6 +904,7 @@ public class UiObject {
      */
     public boolean pinchIn(int percent, int steps) throws UiObjectNotFoundException {
     	try {
+			invalidateProperties();
 			return mAutomatorService.pinchIn(mRetriever.getObjectId(), percent, steps);
 		} catch (NotImplementedException e) {
 			throw new UnsupportedOperationException();
@@ -718,6 +927,7 @@ public class UiObject {
     public boolean performTwoPointerGesture(Point startPoint1, Point startPoint2, Point endPoint1,
             Point endPoint2, int steps) {
     	try {
+			invalidateProperties();
 			return mAutomatorService.gesture(mRetriever.getObjectId(), new com.github.uiautomatorstub.Point(startPoint1), 
 																		new com.github.uiautomatorstub.Point(startPoint2),
 																		new com.github.uiautomatorstub.Point(endPoint1),
@@ -0,0 +1,113 @@
+/*******************************************************************************
+ * Copyright (c) 2014, Lorenzo Keller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package com.android.uiautomator.core;
+
+import android.graphics.Rect;
+
+import com.github.uiautomatorstub.ObjInfo;
+
+/**
+ * Immutable view of the properties of a {@link UiObject} at the time
+ * {@link UiObject#snapshot()} was called.
+ *
+ * All the properties are read from the device with a single call, reading
+ * them afterwards does not contact the device.
+ */
+public class UiObjectSnapshot {
+
+	private final ObjInfo mInfo;
+	private final long mTimestamp;
+
+	UiObjectSnapshot(ObjInfo info) {
+		mInfo = info;
+		mTimestamp = System.currentTimeMillis();
+	}
+
+	/**
+	 * Returns when the properties were read from the device, as returned by
+	 * {@link System#currentTimeMillis()}.
+	 */
+	public long getTimestamp() {
+		return mTimestamp;
+	}
+
+	public String getText() {
+		return mInfo.getText();
+	}
+
+	public String getClassName() {
+		return mInfo.getClassName();
+	}
+
+	public String getContentDescription() {
+		return mInfo.getContentDescription();
+	}
+
+	public String getPackageName() {
+		return mInfo.getPackageName();
+	}
+
+	public int getChildCount() {
+		return mInfo.getChildCount();
+	}
+
+	public boolean isCheckable() {
+		return mInfo.isCheckable();
+	}
+
+	public boolean isChecked() {
+		return mInfo.isChecked();
+	}
+
+	public boolean isClickable() {
+		return mInfo.isClickable();
+	}
+
+	public boolean isEnabled() {
+		return mInfo.isEnabled();
+	}
+
+	public boolean isFocusable() {
+		return mInfo.isFocusable();
+	}
+
+	public boolean isFocused() {
+		return mInfo.isFocused();
+	}
+
+	public boolean isLongClickable() {
+		return mInfo.isLongClickable();
+	}
+
+	public boolean isScrollable() {
+		return mInfo.isScrollable();
+	}
+
+	public boolean isSelected() {
+		return mInfo.isSelected();
+	}
+
+	public Rect getBounds() {
+		return mInfo.getBounds().toRect();
+	}
+
+	public Rect getVisibleBounds() {
+		return mInfo.getVisibleBounds().toRect();
+	}
+
+	@Override
+	public String toString() {
+		return "UiObjectSnapshot[class=" + getClassName() + ", text=" + getText() + "]";
+	}
+}
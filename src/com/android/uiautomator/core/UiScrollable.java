@@ -124,7 +124,7 @@ public class UiScrollable extends UiCollection {
 			
 		};
     	
-		return new UiObject(retriever, mAutomatorService);
+		return new UiObject(retriever, mDevice);
 		
     }
 
@@ -155,7 +155,7 @@ public class UiScrollable extends UiCollection {
 			
 		};
     	
-		return new UiObject(retriever, mAutomatorService);
+		return new UiObject(retriever, mDevice);
     }
 
     /**
@@ -211,7 +211,7 @@ public class UiScrollable extends UiCollection {
 			
 		};
     	
-		return new UiObject(retriever, mAutomatorService);
+		return new UiObject(retriever, mDevice);
     }
 
     /**
@@ -22,6 +22,8 @@ package com.android.uiautomator.core;
 
 import android.util.SparseArray;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.regex.Pattern;
 
 import com.github.uiautomatorstub.Selector;
@@ -875,7 +877,40 @@ public class UiSelector {
         return builder.toString();
     }
 
+	/**
+	 * Converts this selector to the one sent to the automator server. A chain
+	 * built with {@link #childSelector(UiSelector)} and
+	 * {@link #fromParent(UiSelector)} becomes a single compound selector, so
+	 * the server resolves the whole path in one call.
+	 */
 	Selector toSelector() {
+		Selector selector = toLevelSelector();
+
+		List<Selector> levels = new ArrayList<Selector>();
+		List<String> relations = new ArrayList<String>();
+
+		UiSelector current = this;
+
+		while (!current.isLeaf()) {
+			if (current.hasChildSelector()) {
+				current = (UiSelector) current.mSelectorAttributes.get(SELECTOR_CHILD);
+				relations.add("child");
+			} else {
+				current = (UiSelector) current.mSelectorAttributes.get(SELECTOR_PARENT);
+				relations.add("sibling");
+			}
+			levels.add(current.toLevelSelector());
+		}
+
+		if (!levels.isEmpty()) {
+			selector.setChildOrSiblingSelector(levels.toArray(new Selector[levels.size()]));
+			selector.setChildOrSibling(relations.toArray(new String[relations.size()]));
+		}
+
+		return selector;
+	}
+
+	private Selector toLevelSelector() {
 		Selector selector = new Selector();
 
 	     final int criterionCount = mSelectorAttributes.size();
@@ -957,6 +992,10 @@ public class UiSelector {
 	            case SELECTOR_RESOURCE_ID_REGEX:
 	            	selector.setResourceIdMatches((String) mSelectorAttributes.valueAt(i));
 	                break;
+	            case SELECTOR_CHILD:
+	            case SELECTOR_PARENT:
+	            	// part of the chain, handled by toSelector()
+	            	break;
 	            default:
 	            	throw new UnsupportedOperationException("Unknown type of selector criterion " + criterion);
 	            }
@@ -13,12 +13,18 @@
 package com.android.uiautomator.testrunner;
 
 import java.io.File;
+import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.After;
 import org.junit.Rule;
 import org.junit.rules.TestName;
 
+import ch.nodo.multiuiautomator.EmulatorPool;
 import ch.nodo.multiuiautomator.SdkTools;
 import ch.nodo.multiuiautomator.SdkTools.EmulatorController;
 
@@ -39,6 +45,12 @@ public class UiAutomatorTestCase {
 	
 	private static HashMap<String, EmulatorController> mEmulators = new HashMap<String,EmulatorController>();	
 	
+	private static final long LEASE_TIMEOUT_MINUTES = 10;
+	
+	private static EmulatorPool mPool;
+	
+	private List<EmulatorController> mLeased = new ArrayList<EmulatorController>();
+	
 	@Rule
 	public TestName name = new TestName();
 	
@@ -75,6 +87,76 @@ public class UiAutomatorTestCase {
 		
 	}
 	
+	/**
+	 * 
+	 * Creates and starts several emulator instances, the missing ones are 
+	 * booted in parallel.
+	 * 
+	 * @param names the names of the emulator instances
+	 * @return the objects that can be used to control the emulators, in the 
+	 *         order of the names
+	 */
+	protected List<EmulatorController> getEmulatorControllers(String... names) {
+		
+		List<String> missing = new ArrayList<String>();
+		
+		for (String name : names) {
+			if (!mEmulators.containsKey(name)) {
+				missing.add("automatic-" + name);
+			}
+		}
+		
+		if (!missing.isEmpty()) {
+			
+			Map<String, EmulatorController> started = SdkTools.getDefaultSDK().startAll(missing);
+			
+			for (Map.Entry<String, EmulatorController> entry : started.entrySet()) {
+				mEmulators.put(entry.getKey().substring("automatic-".length()), entry.getValue());
+			}
+		}
+		
+		List<EmulatorController> emulators = new ArrayList<EmulatorController>();
+		
+		for (String name : names) {
+			emulators.add(getEmulatorController(name));
+		}
+		
+		return emulators;
+	}
+	
+	/**
+	 * 
+	 * Sets the pool shared by all the test classes from which 
+	 * {@link #leaseEmulator(EmulatorPool.Requirement)} takes the emulators.
+	 * 
+	 * @param pool a started pool
+	 */
+	public static void setEmulatorPool(EmulatorPool pool) {
+		mPool = pool;
+	}
+	
+	/**
+	 * 
+	 * Takes an emulator from the shared pool for the duration of the test, it
+	 * is given back to the pool at the end of the test.
+	 * 
+	 * @param requirement the capabilities the emulator must have
+	 * @return an object that can be used to control the emulator, its UI 
+	 *         automator server is running
+	 */
+	protected EmulatorController leaseEmulator(EmulatorPool.Requirement requirement) {
+		
+		if (mPool == null) {
+			throw new IllegalStateException("No emulator pool, see setEmulatorPool");
+		}
+		
+		EmulatorController emulator = mPool.lease(requirement, LEASE_TIMEOUT_MINUTES, TimeUnit.MINUTES);
+		
+		mLeased.add(emulator);
+		
+		return emulator;
+	}
+	
 	/**
 	 * 
 	 * Return a {@link UiDevice} instance that can be used to control the 
@@ -102,21 +184,48 @@ public class UiAutomatorTestCase {
 			
 			EmulatorController emulator = mEmulators.get(key);
 			
-			File currentEmulatorDir = new File(currentTestDir, key); 
+			emulator.stopUIAutomatorServer();
 			
-			currentEmulatorDir.mkdirs();
+			capture(emulator, new File(currentTestDir, key), false);
+		}
+		
+		for (EmulatorController emulator : mLeased) {
 			
-			emulator.stopUIAutomatorServer();
+			// the server of a leased emulator keeps running, the UI is dumped through it
+			capture(emulator, new File(currentTestDir, emulator.getName()), true);
 			
-			try {
-				emulator.captureScreenShot(new File(currentEmulatorDir, "screenshot.png").getAbsolutePath());
+			mPool.release(emulator);
+		}
+		
+		mLeased.clear();
+
+	}
+	
+	private static void capture(EmulatorController emulator, File currentEmulatorDir, boolean serverRunning) {
+		
+		currentEmulatorDir.mkdirs();
+		
+		try {
+			emulator.captureScreenShot(new File(currentEmulatorDir, "screenshot.png").getAbsolutePath());
+			
+			if (serverRunning) {
+				emulator.dumpUIStructure(new File(currentEmulatorDir, "ui.xml").getAbsolutePath());
+			} else {
 				emulator.captureUIStructure(new File(currentEmulatorDir, "ui.xml").getAbsolutePath());
-			} catch (Exception e) {
-				e.printStackTrace();
 			}
-					
+			
+			PrintWriter log = new PrintWriter(new File(currentEmulatorDir, "log.txt"));
+			try {
+				for (String line : emulator.getRecentLog()) {
+					log.println(line);
+				}
+			} finally {
+				log.close();
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
 		}
-
+				
 	}	
 	
 }
@@ -0,0 +1,96 @@
+/*******************************************************************************
+ * Copyright (c) 2014, Lorenzo Keller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package com.github.uiautomatorstub;
+
+import java.util.concurrent.Future;
+
+/**
+ * Non blocking counterpart of {@link AutomatorService}.
+ *
+ * Every method has the same name and parameters as the method of
+ * {@link AutomatorService} it forwards to and returns a {@link Future} of its
+ * result. Errors raised by the device are reported by {@link Future#get()}
+ * as the cause of an {@link java.util.concurrent.ExecutionException}.
+ *
+ * Calls that change the state of the device are executed in the order in
+ * which they were made, calls that only read it can overlap.
+ */
+public interface AsyncAutomatorService {
+
+    Future<String> ping();
+
+    Future<DeviceInfo> deviceInfo();
+
+    Future<Boolean> click(int x, int y);
+
+    Future<Boolean> swipe(int startX, int startY, int endX, int endY, int steps);
+
+    Future<Boolean> pressKey(String key);
+
+    Future<Boolean> pressKeyCode(int keyCode);
+
+    Future<Boolean> pressKeyCode(int keyCode, int metaState);
+
+    Future<Void> waitForIdle(long timeout);
+
+    Future<Boolean> waitForWindowUpdate(String packageName, long timeout);
+
+    Future<Boolean> isScreenOn();
+
+    Future<String> getLastTraversedText();
+
+    /***************************************************************************
+     * Selector based calls
+     ***************************************************************************/
+
+    Future<String> getText(Selector obj);
+
+    Future<Boolean> setText(Selector obj, String text);
+
+    Future<Void> clearTextField(Selector obj);
+
+    Future<Boolean> click(Selector obj);
+
+    Future<Boolean> longClick(Selector obj);
+
+    Future<Boolean> exist(Selector obj);
+
+    Future<ObjInfo> objInfo(Selector obj);
+
+    Future<Integer> count(Selector obj);
+
+    Future<ObjInfo[]> objInfoOfAllInstances(Selector obj);
+
+    Future<Boolean> waitForExists(Selector obj, long timeout);
+
+    Future<Boolean> waitUntilGone(Selector obj, long timeout);
+
+    /***************************************************************************
+     * Object id based calls
+     ***************************************************************************/
+
+    Future<String> getText(String obj);
+
+    Future<Boolean> setText(String obj, String text);
+
+    Future<Void> clearTextField(String obj);
+
+    Future<Boolean> click(String obj);
+
+    Future<Boolean> longClick(String obj);
+
+    Future<Boolean> exist(String obj);
+
+    Future<ObjInfo> objInfo(String obj);
+}
@@ -0,0 +1,200 @@
+/*******************************************************************************
+ * Copyright (c) 2014, Lorenzo Keller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package ch.nodo.multiuiautomator;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.nodo.multiuiautomator.AdbClient.AdbException;
+
+public class AdbClientTest {
+
+	private static final String SERIAL = "emulator-5554";
+
+	private FakeAdbServer mServer;
+	private AdbClient mClient;
+	private File mDirectory;
+
+	@Before
+	public void setUp() throws IOException {
+		mServer = new FakeAdbServer(SERIAL);
+		mClient = new AdbClient("127.0.0.1", mServer.getPort());
+		mDirectory = Files.createTempDirectory("adb-client-test").toFile();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+
+		mServer.close();
+
+		for (File file : mDirectory.listFiles()) {
+			file.delete();
+		}
+
+		mDirectory.delete();
+	}
+
+	@Test
+	public void listsTheDevices() throws IOException {
+
+		Map<String, String> devices = mClient.getDevices();
+
+		assertEquals(Collections.singletonMap(SERIAL, "device"), devices);
+		assertEquals(Arrays.asList("host:devices"), mServer.getRequests());
+	}
+
+	@Test
+	public void pushesABufferInChunks() throws IOException {
+
+		byte[] data = randomBytes(150000);
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+
+		mClient.push(SERIAL, buffer, "/data/local/tmp/bundle.jar");
+
+		FakeAdbServer.PushedFile pushed = mServer.getPushed("/data/local/tmp/bundle.jar");
+
+		assertNotNull(pushed);
+		assertArrayEquals(data, pushed.mData);
+		assertEquals(Arrays.asList(65536, 65536, 150000 - 2 * 65536), pushed.mChunks);
+		assertEquals(0100644, pushed.mMode);
+		assertEquals(0, buffer.position());
+		assertEquals(Arrays.asList("host:transport:" + SERIAL, "sync:"), mServer.getRequests());
+	}
+
+	@Test
+	public void pushesAnEmptyBuffer() throws IOException {
+
+		mClient.push(SERIAL, ByteBuffer.allocate(0), "/data/local/tmp/empty");
+
+		FakeAdbServer.PushedFile pushed = mServer.getPushed("/data/local/tmp/empty");
+
+		assertNotNull(pushed);
+		assertEquals(0, pushed.mData.length);
+		assertTrue(pushed.mChunks.isEmpty());
+	}
+
+	@Test
+	public void pushesAFileIntoADirectory() throws IOException {
+
+		byte[] data = randomBytes(70000);
+		File file = write("uiautomator-stub.jar", data);
+
+		mServer.addDirectory("/data/local/tmp");
+
+		mClient.push(SERIAL, file.getPath(), "/data/local/tmp");
+
+		FakeAdbServer.PushedFile pushed = mServer.getPushed("/data/local/tmp/uiautomator-stub.jar");
+
+		assertNotNull(pushed);
+		assertArrayEquals(data, pushed.mData);
+		assertEquals(Arrays.asList(65536, 70000 - 65536), pushed.mChunks);
+		assertEquals(file.lastModified() / 1000, pushed.mModified);
+	}
+
+	@Test
+	public void pushesAFileToAPath() throws IOException {
+
+		byte[] data = randomBytes(1000);
+		File file = write("local.jar", data);
+
+		mClient.push(SERIAL, file.getPath(), "/data/local/tmp/remote.jar");
+
+		assertArrayEquals(data, mServer.getPushed("/data/local/tmp/remote.jar").mData);
+	}
+
+	@Test
+	public void pullsIntoMemory() throws IOException {
+
+		byte[] data = randomBytes(200000);
+		mServer.addFile("/sdcard/ui.xml", data);
+
+		ByteBuffer buffer = mClient.pull(SERIAL, "/sdcard/ui.xml");
+
+		byte[] received = new byte[buffer.remaining()];
+		buffer.get(received);
+
+		assertArrayEquals(data, received);
+	}
+
+	@Test
+	public void pullsIntoADirectory() throws IOException {
+
+		byte[] data = randomBytes(100000);
+		mServer.addFile("/sdcard/ui.xml", data);
+
+		mClient.pull(SERIAL, "/sdcard/ui.xml", mDirectory.getPath());
+
+		assertArrayEquals(data, Files.readAllBytes(new File(mDirectory, "ui.xml").toPath()));
+	}
+
+	@Test
+	public void failedPullRemovesThePartialFile() throws IOException {
+
+		File target = new File(mDirectory, "missing.xml");
+
+		try {
+			mClient.pull(SERIAL, "/sdcard/missing.xml", target.getPath());
+			fail("The pull of a missing file succeeded");
+		} catch (AdbException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("No such file"));
+		}
+
+		assertFalse(target.exists());
+	}
+
+	@Test(expected = AdbException.class)
+	public void failsForAnUnknownDevice() throws IOException {
+		mClient.pull("emulator-5556", "/sdcard/ui.xml");
+	}
+
+	private File write(String name, byte[] data) throws IOException {
+
+		File file = new File(mDirectory, name);
+
+		FileOutputStream out = new FileOutputStream(file);
+
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+
+		return file;
+	}
+
+	private static byte[] randomBytes(int size) {
+
+		byte[] data = new byte[size];
+		new Random(size).nextBytes(data);
+
+		return data;
+	}
+}
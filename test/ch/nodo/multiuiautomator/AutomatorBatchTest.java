@@ -0,0 +1,249 @@
+/*******************************************************************************
+ * Copyright (c) 2014, Lorenzo Keller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package ch.nodo.multiuiautomator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.github.uiautomatorstub.AutomatorService;
+
+public class AutomatorBatchTest {
+
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+
+	private FakeHttpServer mServer;
+	private AutomatorConnectionPool mPool;
+
+	@After
+	public void tearDown() throws IOException {
+
+		if (mPool != null) {
+			mPool.close();
+		}
+
+		if (mServer != null) {
+			mServer.close();
+		}
+	}
+
+	@Test
+	public void sendsTheCallsAsOneBatch() throws Throwable {
+
+		PooledJsonRpcHttpClient client = start(new FakeHttpServer.Handler() {
+			@Override
+			public FakeHttpServer.Response handle(String body) throws IOException {
+
+				JsonNode request = MAPPER.readTree(body);
+				ArrayNode response = MAPPER.createArrayNode();
+
+				// answered in reverse order, the results are matched by id
+				for (int i = request.size() - 1; i >= 0; i--) {
+					response.add(answer(request.get(i)));
+				}
+
+				return new FakeHttpServer.Response(200, response.toString());
+			}
+		});
+
+		List<AutomatorBatch.Result> results = record(client);
+
+		assertEquals(1, mServer.getRequests().size());
+		assertTrue(MAPPER.readTree(mServer.getRequests().get(0)).isArray());
+		checkResults(results);
+		assertTrue(client.isBatchSupported());
+	}
+
+	@Test
+	public void reportsTheErrorOfEachCall() throws Throwable {
+
+		PooledJsonRpcHttpClient client = start(new FakeHttpServer.Handler() {
+			@Override
+			public FakeHttpServer.Response handle(String body) throws IOException {
+
+				ArrayNode response = MAPPER.createArrayNode();
+
+				for (JsonNode call : MAPPER.readTree(body)) {
+
+					if (call.get("method").asText().equals("click")) {
+						response.add(error(call, "click rejected"));
+					} else {
+						response.add(answer(call));
+					}
+				}
+
+				return new FakeHttpServer.Response(200, response.toString());
+			}
+		});
+
+		List<AutomatorBatch.Result> results = record(client);
+
+		assertEquals(3, results.size());
+		assertEquals("pong", results.get(0).get());
+		assertTrue(results.get(1).isError());
+		assertEquals("x", results.get(2).get());
+	}
+
+	@Test
+	public void fallsBackWhenTheServerDoesNotUnderstandBatches() throws Throwable {
+
+		PooledJsonRpcHttpClient client = start(new FakeHttpServer.Handler() {
+			@Override
+			public FakeHttpServer.Response handle(String body) throws IOException {
+
+				JsonNode request = MAPPER.readTree(body);
+
+				if (request.isArray()) {
+					return new FakeHttpServer.Response(200, "{\"jsonrpc\":\"2.0\",\"id\":null,"
+							+ "\"error\":{\"code\":-32600,\"message\":\"Invalid Request\"}}");
+				}
+
+				return new FakeHttpServer.Response(200, answer(request).toString());
+			}
+		});
+
+		checkResults(record(client));
+
+		// one rejected batch and three single calls
+		assertEquals(4, mServer.getRequests().size());
+		assertFalse(client.isBatchSupported());
+
+		// the next batch is not attempted
+		checkResults(record(client));
+		assertEquals(7, mServer.getRequests().size());
+	}
+
+	@Test
+	public void fallsBackWhenTheBatchGetsAnHttpError() throws Throwable {
+
+		PooledJsonRpcHttpClient client = start(new FakeHttpServer.Handler() {
+			@Override
+			public FakeHttpServer.Response handle(String body) throws IOException {
+
+				JsonNode request = MAPPER.readTree(body);
+
+				if (request.isArray()) {
+					return new FakeHttpServer.Response(500, "");
+				}
+
+				return new FakeHttpServer.Response(200, answer(request).toString());
+			}
+		});
+
+		checkResults(record(client));
+
+		assertEquals(4, mServer.getRequests().size());
+		assertFalse(client.isBatchSupported());
+	}
+
+	@Test
+	public void doesNotResendTheCallsWhenTheConnectionFails() throws Throwable {
+
+		// the server runs the batch but the connection breaks before the answer
+		PooledJsonRpcHttpClient client = start(new FakeHttpServer.Handler() {
+			@Override
+			public FakeHttpServer.Response handle(String body) throws IOException {
+				return null;
+			}
+		});
+
+		List<AutomatorBatch.Result> results = record(client);
+
+		assertEquals(1, mServer.getRequests().size());
+		assertEquals(3, results.size());
+
+		for (AutomatorBatch.Result result : results) {
+			assertTrue(result.isError());
+		}
+
+		assertTrue(client.isBatchSupported());
+	}
+
+	private PooledJsonRpcHttpClient start(FakeHttpServer.Handler handler) throws IOException {
+
+		mServer = new FakeHttpServer(handler);
+		mPool = new AutomatorConnectionPool("127.0.0.1", mServer.getPort(), 2, 30000);
+
+		return new PooledJsonRpcHttpClient(new URL("http://127.0.0.1:" + mServer.getPort() + "/jsonrpc/0"), mPool);
+	}
+
+	private static List<AutomatorBatch.Result> record(PooledJsonRpcHttpClient client) throws Exception {
+
+		AutomatorBatch batch = new AutomatorBatch(client);
+
+		AutomatorService service = batch.getService();
+		service.ping();
+		service.click(10, 20);
+		service.getText("x");
+
+		assertEquals(3, batch.size());
+
+		return batch.execute();
+	}
+
+	private static void checkResults(List<AutomatorBatch.Result> results) throws Throwable {
+		assertEquals(3, results.size());
+		assertEquals("ping", results.get(0).getMethod());
+		assertEquals("pong", results.get(0).get());
+		assertEquals(Boolean.TRUE, results.get(1).get());
+		assertEquals("x", results.get(2).get());
+	}
+
+	/**
+	 * Answers ping with pong, click with true and the other calls with their
+	 * first argument
+	 */
+	private static ObjectNode answer(JsonNode call) {
+
+		ObjectNode response = MAPPER.createObjectNode();
+		response.put("jsonrpc", "2.0");
+		response.put("id", call.get("id"));
+
+		String method = call.get("method").asText();
+
+		if (method.equals("ping")) {
+			response.put("result", "pong");
+		} else if (method.equals("click")) {
+			response.put("result", true);
+		} else {
+			response.put("result", call.get("params").get(0));
+		}
+
+		return response;
+	}
+
+	private static ObjectNode error(JsonNode call, String message) {
+
+		ObjectNode error = MAPPER.createObjectNode();
+		error.put("code", -32000);
+		error.put("message", message);
+
+		ObjectNode response = MAPPER.createObjectNode();
+		response.put("jsonrpc", "2.0");
+		response.put("id", call.get("id"));
+		response.put("error", error);
+
+		return response;
+	}
+}
@@ -0,0 +1,352 @@
+/*******************************************************************************
+ * Copyright (c) 2014, Lorenzo Keller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package ch.nodo.multiuiautomator;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ *
+ * An adb server with one device and an in-memory file system, standing for
+ * the real server in the tests. It speaks the host protocol (hex length and
+ * payload, answered with OKAY or FAIL) and the sync protocol (8 byte
+ * little-endian headers) and records what it receives.
+ *
+ */
+class FakeAdbServer {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final int SYNC_DATA_MAX = 64 * 1024;
+
+	private static final int FILE_MODE = 0100644;
+
+	private static final int DIRECTORY_MODE = 0040000;
+
+	/**
+	 * A file received with SEND
+	 */
+	static class PushedFile {
+
+		final int mMode;
+		final int mModified;
+		final byte[] mData;
+		final List<Integer> mChunks;
+
+		PushedFile(int mode, int modified, byte[] data, List<Integer> chunks) {
+			mMode = mode;
+			mModified = modified;
+			mData = data;
+			mChunks = chunks;
+		}
+	}
+
+	private final ServerSocket mServer;
+	private final String mSerial;
+
+	private final Map<String, byte[]> mFiles = new HashMap<String, byte[]>();
+	private final Set<String> mDirectories = new HashSet<String>();
+	private final Map<String, PushedFile> mPushed = new LinkedHashMap<String, PushedFile>();
+	private final List<String> mRequests = new ArrayList<String>();
+
+	FakeAdbServer(String serial) throws IOException {
+
+		mServer = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		mSerial = serial;
+
+		Thread thread = new Thread("fake-adb-server") {
+			@Override
+			public void run() {
+				accept();
+			}
+		};
+
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	int getPort() {
+		return mServer.getLocalPort();
+	}
+
+	synchronized void addFile(String path, byte[] data) {
+		mFiles.put(path, data);
+	}
+
+	synchronized void addDirectory(String path) {
+		mDirectories.add(path);
+	}
+
+	synchronized PushedFile getPushed(String path) {
+		return mPushed.get(path);
+	}
+
+	/**
+	 * Returns the host requests received so far
+	 */
+	synchronized List<String> getRequests() {
+		return new ArrayList<String>(mRequests);
+	}
+
+	void close() throws IOException {
+		mServer.close();
+	}
+
+	private void accept() {
+
+		while (true) {
+
+			final Socket socket;
+
+			try {
+				socket = mServer.accept();
+			} catch (IOException e) {
+				// closed
+				return;
+			}
+
+			Thread thread = new Thread("fake-adb-connection") {
+				@Override
+				public void run() {
+					try {
+						serve(socket);
+					} catch (IOException e) {
+						// the client went away
+					} finally {
+						try {
+							socket.close();
+						} catch (IOException e) {
+							// nothing to do
+						}
+					}
+				}
+			};
+
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	private void serve(Socket socket) throws IOException {
+
+		DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		OutputStream out = socket.getOutputStream();
+
+		boolean transport = false;
+
+		while (true) {
+
+			byte[] length = new byte[4];
+			in.readFully(length);
+
+			byte[] payload = new byte[Integer.parseInt(new String(length, UTF8), 16)];
+			in.readFully(payload);
+
+			String request = new String(payload, UTF8);
+
+			synchronized (this) {
+				mRequests.add(request);
+			}
+
+			if (request.equals("host:devices")) {
+				out.write("OKAY".getBytes(UTF8));
+				writeString(out, mSerial + "\tdevice\n");
+				return;
+			} else if (request.startsWith("host:transport:")) {
+				if (!request.substring("host:transport:".length()).equals(mSerial)) {
+					out.write("FAIL".getBytes(UTF8));
+					writeString(out, "device '" + request.substring("host:transport:".length()) + "' not found");
+					return;
+				}
+				out.write("OKAY".getBytes(UTF8));
+				transport = true;
+			} else if (transport && request.equals("sync:")) {
+				out.write("OKAY".getBytes(UTF8));
+				sync(in, out);
+				return;
+			} else {
+				out.write("FAIL".getBytes(UTF8));
+				writeString(out, "unknown request " + request);
+				return;
+			}
+		}
+	}
+
+	private void sync(DataInputStream in, OutputStream out) throws IOException {
+
+		while (true) {
+
+			ByteBuffer header = readHeader(in);
+			String id = new String(header.array(), 0, 4, UTF8);
+			int length = header.getInt(4);
+
+			if (id.equals("QUIT")) {
+				return;
+			}
+
+			byte[] argument = new byte[length];
+			in.readFully(argument);
+
+			String path = new String(argument, UTF8);
+
+			if (id.equals("STAT")) {
+				stat(out, path);
+			} else if (id.equals("SEND")) {
+				receive(in, out, path);
+			} else if (id.equals("RECV")) {
+				send(out, path);
+			} else {
+				throw new IOException("Unexpected sync request " + id);
+			}
+		}
+	}
+
+	private void stat(OutputStream out, String path) throws IOException {
+
+		int mode;
+		int size = 0;
+
+		synchronized (this) {
+			if (mDirectories.contains(path)) {
+				mode = DIRECTORY_MODE | 0755;
+			} else if (mFiles.containsKey(path)) {
+				mode = FILE_MODE;
+				size = mFiles.get(path).length;
+			} else {
+				mode = 0;
+			}
+		}
+
+		ByteBuffer reply = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+		reply.put("STAT".getBytes(UTF8)).putInt(mode).putInt(size).putInt(0);
+
+		out.write(reply.array());
+	}
+
+	private void receive(DataInputStream in, OutputStream out, String argument) throws IOException {
+
+		int comma = argument.lastIndexOf(',');
+		String path = argument.substring(0, comma);
+		int mode = Integer.parseInt(argument.substring(comma + 1));
+
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		List<Integer> chunks = new ArrayList<Integer>();
+
+		while (true) {
+
+			ByteBuffer header = readHeader(in);
+			String id = new String(header.array(), 0, 4, UTF8);
+			int value = header.getInt(4);
+
+			if (id.equals("DATA")) {
+
+				if (value > SYNC_DATA_MAX) {
+					writePacket(out, "FAIL", "data chunk too large: " + value);
+					return;
+				}
+
+				byte[] chunk = new byte[value];
+				in.readFully(chunk);
+
+				data.write(chunk);
+				chunks.add(value);
+
+			} else if (id.equals("DONE")) {
+
+				synchronized (this) {
+					mPushed.put(path, new PushedFile(mode, value, data.toByteArray(), chunks));
+					mFiles.put(path, data.toByteArray());
+				}
+
+				writePacket(out, "OKAY", "");
+				return;
+
+			} else {
+				throw new IOException("Unexpected sync request " + id);
+			}
+		}
+	}
+
+	private void send(OutputStream out, String path) throws IOException {
+
+		byte[] data;
+
+		synchronized (this) {
+			data = mFiles.get(path);
+		}
+
+		if (data == null) {
+			writePacket(out, "FAIL", "No such file or directory");
+			return;
+		}
+
+		for (int offset = 0; offset < data.length; offset += SYNC_DATA_MAX) {
+
+			int length = Math.min(SYNC_DATA_MAX, data.length - offset);
+
+			out.write(header("DATA", length).array());
+			out.write(data, offset, length);
+		}
+
+		out.write(header("DONE", 0).array());
+	}
+
+	private static ByteBuffer readHeader(DataInputStream in) throws IOException {
+
+		ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+		in.readFully(header.array());
+
+		return header;
+	}
+
+	private static ByteBuffer header(String id, int value) {
+
+		ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+		header.put(id.getBytes(UTF8)).putInt(value);
+
+		return header;
+	}
+
+	private static void writePacket(OutputStream out, String id, String message) throws IOException {
+
+		byte[] data = message.getBytes(UTF8);
+
+		out.write(header(id, data.length).array());
+		out.write(data);
+	}
+
+	private static void writeString(OutputStream out, String value) throws IOException {
+
+		byte[] data = value.getBytes(UTF8);
+
+		out.write(String.format("%04x", data.length).getBytes(UTF8));
+		out.write(data);
+		out.flush();
+	}
+}
@@ -0,0 +1,197 @@
+/*******************************************************************************
+ * Copyright (c) 2014, Lorenzo Keller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package ch.nodo.multiuiautomator;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *
+ * A minimal HTTP/1.1 server with keep-alive, standing for the UI automator
+ * server in the tests. Each request body is passed to a handler that
+ * decides the status and the body of the response.
+ *
+ */
+class FakeHttpServer {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	interface Handler {
+
+		/**
+		 * @return the response, <code>null</code> to close the connection
+		 *         without answering
+		 */
+		Response handle(String body) throws IOException;
+	}
+
+	static class Response {
+
+		final int mStatus;
+		final String mBody;
+
+		Response(int status, String body) {
+			mStatus = status;
+			mBody = body;
+		}
+	}
+
+	private final ServerSocket mServer;
+	private final Handler mHandler;
+	private final List<String> mRequests = new ArrayList<String>();
+
+	private volatile int mKeepAliveTimeout;
+
+	FakeHttpServer(Handler handler) throws IOException {
+
+		mServer = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		mHandler = handler;
+
+		Thread thread = new Thread("fake-http-server") {
+			@Override
+			public void run() {
+				accept();
+			}
+		};
+
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 *
+	 * Closes the connections idle for longer than the given time, in
+	 * milliseconds, like the server of the device does. 0 keeps them open.
+	 *
+	 */
+	void setKeepAliveTimeout(int timeout) {
+		mKeepAliveTimeout = timeout;
+	}
+
+	int getPort() {
+		return mServer.getLocalPort();
+	}
+
+	/**
+	 *
+	 * Returns the bodies of the requests received so far
+	 *
+	 */
+	synchronized List<String> getRequests() {
+		return new ArrayList<String>(mRequests);
+	}
+
+	void close() throws IOException {
+		mServer.close();
+	}
+
+	private void accept() {
+
+		try {
+
+			while (true) {
+
+				final Socket socket = mServer.accept();
+
+				Thread thread = new Thread("fake-http-connection") {
+					@Override
+					public void run() {
+						serve(socket);
+					}
+				};
+
+				thread.setDaemon(true);
+				thread.start();
+			}
+
+		} catch (IOException e) {
+			// closed
+		}
+	}
+
+	private void serve(Socket socket) {
+
+		try {
+
+			socket.setSoTimeout(mKeepAliveTimeout);
+
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			OutputStream out = socket.getOutputStream();
+
+			while (true) {
+
+				String line = readLine(in);
+
+				if (line == null) return;
+
+				int length = 0;
+
+				while (!(line = readLine(in)).isEmpty()) {
+					if (line.toLowerCase().startsWith("content-length:")) {
+						length = Integer.parseInt(line.substring(line.indexOf(':') + 1).trim());
+					}
+				}
+
+				String body = new String(PooledJsonRpcHttpClient.readFully(in, length), UTF8);
+
+				synchronized (this) {
+					mRequests.add(body);
+				}
+
+				Response response = mHandler.handle(body);
+
+				if (response == null) return;
+
+				byte[] data = response.mBody.getBytes(UTF8);
+
+				out.write(("HTTP/1.1 " + response.mStatus + " Status\r\nContent-Type: application/json\r\n"
+						+ "Content-Length: " + data.length + "\r\n\r\n").getBytes(UTF8));
+				out.write(data);
+				out.flush();
+			}
+
+		} catch (IOException e) {
+			// the client went away or the connection was idle for too long
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// nothing to do
+			}
+		}
+	}
+
+	private static String readLine(InputStream in) throws IOException {
+
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+		int b;
+
+		while ((b = in.read()) != -1 && b != '\n') {
+			if (b != '\r') line.write(b);
+		}
+
+		if (b == -1 && line.size() == 0) return null;
+
+		return new String(line.toByteArray(), UTF8);
+	}
+}
@@ -0,0 +1,103 @@
+/*******************************************************************************
+ * Copyright (c) 2014, Lorenzo Keller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package ch.nodo.multiuiautomator;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.net.URL;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.github.uiautomatorstub.AutomatorService;
+import com.googlecode.jsonrpc4j.ProxyUtil;
+
+public class PooledJsonRpcHttpClientTest {
+
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+
+	private FakeHttpServer mServer;
+	private AutomatorConnectionPool mPool;
+
+	@After
+	public void tearDown() throws IOException {
+
+		if (mPool != null) {
+			mPool.close();
+		}
+
+		if (mServer != null) {
+			mServer.close();
+		}
+	}
+
+	@Test
+	public void reusesAnOpenConnection() throws Exception {
+
+		AutomatorService service = start(0);
+
+		assertEquals("pong", service.ping());
+		assertEquals("pong", service.ping());
+
+		assertEquals(1, mPool.getConnects());
+		assertEquals(1, mPool.getHits());
+		assertEquals(0, mPool.getReconnects());
+	}
+
+	@Test
+	public void reconnectsAfterTheServerClosedAnIdleConnection() throws Exception {
+
+		AutomatorService service = start(300);
+
+		assertEquals("pong", service.ping());
+
+		Thread.sleep(1000);
+
+		assertEquals("pong", service.ping());
+
+		assertEquals(2, mServer.getRequests().size());
+		assertEquals(2, mPool.getConnects());
+		assertEquals(1, mPool.getReconnects());
+	}
+
+	private AutomatorService start(int keepAliveTimeout) throws IOException {
+
+		mServer = new FakeHttpServer(new FakeHttpServer.Handler() {
+			@Override
+			public FakeHttpServer.Response handle(String body) throws IOException {
+
+				JsonNode request = MAPPER.readTree(body);
+
+				ObjectNode response = MAPPER.createObjectNode();
+				response.put("jsonrpc", "2.0");
+				response.put("id", request.get("id"));
+				response.put("result", "pong");
+
+				return new FakeHttpServer.Response(200, response.toString());
+			}
+		});
+
+		mServer.setKeepAliveTimeout(keepAliveTimeout);
+
+		mPool = new AutomatorConnectionPool("127.0.0.1", mServer.getPort(), 2, 30000);
+
+		PooledJsonRpcHttpClient client = new PooledJsonRpcHttpClient(
+				new URL("http://127.0.0.1:" + mServer.getPort() + "/jsonrpc/0"), mPool);
+
+		return ProxyUtil.createClientProxy(AutomatorService.class.getClassLoader(), AutomatorService.class, client);
+	}
+}
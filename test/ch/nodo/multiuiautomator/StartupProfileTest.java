@@ -0,0 +1,242 @@
+/*******************************************************************************
+ * Copyright (c) 2014, Lorenzo Keller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package ch.nodo.multiuiautomator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.nodo.multiuiautomator.SdkTools.EmulatorController;
+
+public class StartupProfileTest {
+
+	private static final String EMULATOR = new File(new File("/opt/android-sdk", "tools"), "emulator").toString();
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private File mSdk;
+	private SdkTools mTools;
+
+	/**
+	 * Creates an SDK whose emulator records its arguments and marks the
+	 * device as booted after the delay found in boot-delay-&lt;avd&gt;, or
+	 * never if there is no such file. Its adb answers the boot checks from
+	 * these marks.
+	 */
+	@Before
+	public void setUp() throws IOException {
+
+		mSdk = Files.createTempDirectory("startup-profile-test").toFile();
+
+		String dir = mSdk.getPath();
+
+		script(new File(new File(mSdk, "tools"), "emulator"), "all=\"$*\"\n"
+				+ "while [ $# -gt 0 ]; do\n"
+				+ "  case \"$1\" in -avd) avd=$2; shift;; -port) port=$2; shift;; esac\n"
+				+ "  shift\n"
+				+ "done\n"
+				+ "echo \"$all\" > " + dir + "/args-$avd\n"
+				+ "if [ -f " + dir + "/boot-delay-$avd ]; then\n"
+				+ "  sleep $(cat " + dir + "/boot-delay-$avd)\n"
+				+ "  touch " + dir + "/booted-emulator-$port\n"
+				+ "fi\n"
+				+ "exec sleep 60\n");
+
+		// adb -s <serial> shell <command>
+		script(new File(new File(mSdk, "platform-tools"), "adb"), "if [ \"$3\" = shell ] && [ -f " + dir
+				+ "/booted-$2 ]; then\n"
+				+ "  printf '1\\r\\n1\\r\\nPackage package: found\\r\\n'\n"
+				+ "  exit 0\n"
+				+ "fi\n"
+				+ "exit 1\n");
+
+		mTools = new SdkTools(mSdk.getPath());
+		mTools.setAdbClientEnabled(false);
+
+		StartupReport.getDefault().reset();
+	}
+
+	@After
+	public void tearDown() {
+		delete(mSdk);
+		StartupReport.getDefault().reset();
+	}
+
+	@Test
+	public void recordsTheStartupTimeOfTheProfile() throws Exception {
+
+		write(new File(mSdk, "boot-delay-ready-avd"), "0.3");
+
+		EmulatorController controller = mTools.createEmulatorController("ready-avd");
+		controller.setStartupProfile(StartupProfile.snapshot("clean"));
+
+		try {
+
+			controller.start();
+
+			assertTrue(controller.isRunning());
+			assertFalse(controller.isBootCompleted());
+
+			long elapsed = controller.waitForReady();
+
+			assertTrue(controller.isBootCompleted());
+			assertTrue("booted after " + elapsed + " ms", elapsed >= 300 && elapsed < 10000);
+
+			LatencyStats stats = StartupReport.getDefault().getStats("snapshot:clean");
+
+			assertEquals(1, stats.getCount());
+			assertTrue(stats.getPercentileMicros(100) >= TimeUnit.MILLISECONDS.toMicros(300));
+			assertEquals(0, StartupReport.getDefault().getStats("quick-boot").getCount());
+
+			int port = Integer.parseInt(controller.getSerial().substring("emulator-".length()));
+			List<String> command = controller.getStartCommand(port);
+
+			assertEquals(command.subList(1, command.size()),
+					Arrays.asList(read(new File(mSdk, "args-ready-avd")).trim().split(" ")));
+
+		} finally {
+			controller.stop();
+		}
+
+		assertFalse(controller.isRunning());
+	}
+
+	@Test
+	public void failsWhenTheDeviceDoesNotBootInTime() throws Exception {
+
+		EmulatorController controller = mTools.createEmulatorController("stuck-avd");
+		controller.setStartupProfile(StartupProfile.cold().withBootTimeout(1, TimeUnit.SECONDS));
+
+		try {
+
+			controller.start();
+
+			long start = System.nanoTime();
+
+			try {
+				controller.waitForReady();
+				fail("The device booted");
+			} catch (RuntimeException e) {
+				assertTrue(e.getMessage(), e.getMessage().contains("Timeout"));
+			}
+
+			long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+			assertTrue("waited " + waited + " ms", waited >= 1000 && waited < 10000);
+			assertTrue(controller.isRunning());
+			assertEquals(0, StartupReport.getDefault().getStats("cold").getCount());
+
+		} finally {
+			controller.stop();
+		}
+
+		assertFalse(controller.isRunning());
+	}
+
+	@Test
+	public void coldBootIgnoresTheSnapshots() {
+		assertEquals(Arrays.asList(EMULATOR, "-scale", "0.6", "-no-boot-anim", "-noaudio", "-no-snapshot-load",
+				"-no-snapshot-save", "-avd", "cold-avd", "-port", "5556"),
+				getStartCommand("cold-avd", StartupProfile.cold()));
+	}
+
+	@Test
+	public void quickBootUsesTheDefaultSnapshot() {
+		assertEquals(Arrays.asList(EMULATOR, "-scale", "0.6", "-no-boot-anim", "-noaudio", "-avd", "quick-avd",
+				"-port", "5556"), getStartCommand("quick-avd", StartupProfile.quickBoot()));
+	}
+
+	@Test
+	public void snapshotBootLoadsTheNamedSnapshotWithoutSavingIt() {
+		assertEquals(Arrays.asList(EMULATOR, "-scale", "0.6", "-no-boot-anim", "-noaudio", "-snapshot", "clean",
+				"-no-snapshot-save", "-avd", "snapshot-avd", "-port", "5556"),
+				getStartCommand("snapshot-avd", StartupProfile.snapshot("clean")));
+	}
+
+	@Test
+	public void quickBootIsTheDefault() {
+
+		EmulatorController controller = new SdkTools("/opt/android-sdk").createEmulatorController("default-avd");
+
+		assertEquals("quick-boot", controller.getStartupProfile().getName());
+	}
+
+	@Test
+	public void bootTimeoutKeepsTheArguments() {
+
+		StartupProfile profile = StartupProfile.snapshot("clean");
+		StartupProfile longer = profile.withBootTimeout(10, TimeUnit.MINUTES);
+
+		assertEquals(profile.getArguments(), longer.getArguments());
+		assertEquals(profile.getName(), longer.getName());
+		assertEquals(profile.getFirstCheckDelay(), longer.getFirstCheckDelay());
+		assertEquals(TimeUnit.MINUTES.toMillis(10), longer.getBootTimeout());
+	}
+
+	private static void script(File file, String content) throws IOException {
+		file.getParentFile().mkdirs();
+		write(file, "#!/bin/sh\n" + content);
+		file.setExecutable(true);
+	}
+
+	private static void write(File file, String content) throws IOException {
+
+		OutputStream out = new FileOutputStream(file);
+
+		try {
+			out.write(content.getBytes(UTF8));
+		} finally {
+			out.close();
+		}
+	}
+
+	private static String read(File file) throws IOException {
+		return new String(Files.readAllBytes(file.toPath()), UTF8);
+	}
+
+	private static void delete(File file) {
+
+		File[] children = file.listFiles();
+
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+
+		file.delete();
+	}
+
+	private static List<String> getStartCommand(String name, StartupProfile profile) {
+
+		EmulatorController controller = new SdkTools("/opt/android-sdk").createEmulatorController(name);
+		controller.setStartupProfile(profile);
+
+		return controller.getStartCommand(5556);
+	}
+}
@@ -0,0 +1,95 @@
+/*******************************************************************************
+ * Copyright (c) 2014, Lorenzo Keller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package ch.nodo.multiuiautomator;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.net.URL;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.github.uiautomatorstub.AutomatorService;
+import com.googlecode.jsonrpc4j.ProxyUtil;
+
+public class UiObjectHandleTrackerTest {
+
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+
+	@Test
+	public void countsTheIdsRejectedInABatch() throws Exception {
+
+		// the server only knows the even ids
+		FakeHttpServer server = new FakeHttpServer(new FakeHttpServer.Handler() {
+			@Override
+			public FakeHttpServer.Response handle(String body) throws IOException {
+
+				ArrayNode response = MAPPER.createArrayNode();
+
+				for (JsonNode call : MAPPER.readTree(body)) {
+
+					ObjectNode answer = MAPPER.createObjectNode();
+					answer.put("jsonrpc", "2.0");
+					answer.put("id", call.get("id"));
+
+					if (Integer.parseInt(call.get("params").get(0).asText()) % 2 == 0) {
+						answer.putNull("result");
+					} else {
+						ObjectNode error = answer.putObject("error");
+						error.put("code", -32001);
+						error.put("message", "Unknown object");
+					}
+
+					response.add(answer);
+				}
+
+				return new FakeHttpServer.Response(200, response.toString());
+			}
+		});
+
+		AutomatorConnectionPool pool = new AutomatorConnectionPool("127.0.0.1", server.getPort(), 2, 30000);
+
+		try {
+
+			PooledJsonRpcHttpClient client = new PooledJsonRpcHttpClient(
+					new URL("http://127.0.0.1:" + server.getPort() + "/jsonrpc/0"), pool);
+
+			AutomatorService service = ProxyUtil.createClientProxy(AutomatorService.class.getClassLoader(),
+					AutomatorService.class, client);
+
+			UiObjectHandleTracker tracker = new UiObjectHandleTracker("test", client, service, 60000);
+
+			Object owner = new Object();
+
+			for (int i = 0; i < 10; i++) {
+				tracker.track(owner, Integer.toString(i));
+				tracker.release(Integer.toString(i));
+			}
+
+			tracker.flush();
+			tracker.close();
+
+			assertEquals(1, server.getRequests().size());
+			assertEquals(5, tracker.getRemovedHandles());
+			assertEquals(5, tracker.getFailures());
+
+		} finally {
+			pool.close();
+			server.close();
+		}
+	}
+}
@@ -0,0 +1,125 @@
+/*******************************************************************************
+ * Copyright (c) 2014, Lorenzo Keller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.android.uiautomator.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.nodo.multiuiautomator.DeviceInfoCache;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.uiautomatorstub.AutomatorService;
+import com.github.uiautomatorstub.DeviceInfo;
+
+public class UiDeviceTest {
+
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+
+	private int mRotation;
+	private int mDeviceInfoCalls;
+
+	private UiDevice mDevice;
+
+	/**
+	 * A device without controller whose service only knows its rotation
+	 */
+	@Before
+	public void setUp() {
+
+		AutomatorService service = (AutomatorService) Proxy.newProxyInstance(AutomatorService.class.getClassLoader(),
+				new Class<?>[] { AutomatorService.class }, new InvocationHandler() {
+
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+
+						if (method.getName().equals("deviceInfo")) {
+
+							mDeviceInfoCalls++;
+
+							// built like the client does, the constructor is private
+							return MAPPER.readValue("{\"displayRotation\":" + mRotation + ",\"naturalOrientation\":"
+									+ (mRotation % 2 == 0) + "}", DeviceInfo.class);
+
+						} else if (method.getName().equals("setOrientation")) {
+
+							String direction = (String) args[0];
+							mRotation = direction.equals("left") ? 1 : direction.equals("right") ? 3 : 0;
+
+						} else if (!method.getName().equals("freezeRotation")) {
+							throw new UnsupportedOperationException(method.getName());
+						}
+
+						return null;
+					}
+				});
+
+		mDevice = new UiDevice(null, service);
+	}
+
+	@Test
+	public void reusesTheRotationWhileItDoesNotChange() throws Exception {
+
+		assertEquals(0, mDevice.getDisplayRotation());
+		assertTrue(mDevice.isNaturalOrientation());
+
+		assertEquals(1, mDeviceInfoCalls);
+	}
+
+	@Test
+	public void seesTheRotationSetByTheTest() throws Exception {
+
+		assertEquals(0, mDevice.getDisplayRotation());
+
+		mDevice.setOrientationLeft();
+
+		assertEquals(1, mDevice.getDisplayRotation());
+		assertFalse(mDevice.isNaturalOrientation());
+
+		mDevice.setOrientationRight();
+
+		assertEquals(3, mDevice.getDisplayRotation());
+
+		mDevice.setOrientationNatural();
+
+		assertEquals(0, mDevice.getDisplayRotation());
+	}
+
+	@Test
+	public void freezingTheRotationDropsTheCachedRotation() throws Exception {
+
+		mDevice.getDisplayRotation();
+
+		mDevice.freezeRotation();
+		mDevice.getDisplayRotation();
+
+		mDevice.unfreezeRotation();
+		mDevice.getDisplayRotation();
+
+		assertEquals(3, mDeviceInfoCalls);
+	}
+
+	@Test
+	public void knowsTheMethodsThatChangeTheRotation() {
+		assertTrue(DeviceInfoCache.changesRotation("setOrientation"));
+		assertTrue(DeviceInfoCache.changesRotation("freezeRotation"));
+		assertFalse(DeviceInfoCache.changesRotation("click"));
+	}
+}